@@ -21,5 +21,6 @@ public class ServerkitExtension implements QuPathExtension {
     public void installExtension(QuPathGUI qupath) {
         ServerKitUI serverKitUI = new ServerKitUI(qupath, name, extMenuName);
         serverKitUI.addConnectionMenuItem();
+        serverKitUI.connectToRecentServers();
     }
 }
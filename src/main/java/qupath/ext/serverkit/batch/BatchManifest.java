@@ -0,0 +1,152 @@
+package qupath.ext.serverkit.batch;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+
+import qupath.ext.serverkit.client.Client;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+/**
+ * Description of a batch run, shared by all the workers: the project, the algorithm and
+ * its parameters, and the list of shards to process.
+ * <p>
+ * A shard is either a whole image of the project, or a region of an image larger than the
+ * shard size. Neighbouring regions overlap by the tile overlap of the
+ * {@link qupath.ext.serverkit.client.PipelineSettings}, so that the duplicates at their
+ * borders can be merged at the end.
+ */
+public class BatchManifest {
+
+    /**
+     * A unit of work claimed by a single worker
+     *
+     * @param id unique in the manifest, used to name the files of the shard
+     * @param entryId ID of the project image entry
+     * @param imageName
+     * @param x null if the shard is the whole image
+     * @param y
+     * @param width
+     * @param height
+     */
+    public record Shard(String id, String entryId, String imageName, Integer x, Integer y, Integer width, Integer height) {
+
+        public boolean hasRegion() {
+            return width != null && height != null;
+        }
+    }
+
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    private String project;
+    private String algorithm;
+    private Map<String, JsonElement> parameters = new LinkedHashMap<>();
+    private List<Shard> shards = new ArrayList<>();
+
+    private BatchManifest() {
+    }
+
+    /**
+     * Create a manifest with one shard per image, or per region for the images larger than
+     * the shard size
+     *
+     * @param project
+     * @param algoName
+     * @param parameters parameter values by name, the others take their default value
+     * @param shardSize maximum width and height of a shard in pixels, or 0 for one shard per image
+     * @return the manifest
+     * @throws IOException if an image cannot be read
+     */
+    public static BatchManifest create(Project<BufferedImage> project, String algoName, Map<String, ?> parameters,
+            int shardSize) throws IOException {
+        BatchManifest manifest = new BatchManifest();
+        manifest.project = project.getPath().toAbsolutePath().toString();
+        manifest.algorithm = algoName;
+        if (parameters != null) {
+            for (Map.Entry<String, ?> entry : parameters.entrySet()) {
+                manifest.parameters.put(entry.getKey(), gson.toJsonTree(entry.getValue()));
+            }
+        }
+
+        int overlap = Client.getInstance().getPipelineSettings().getTileOverlap();
+        for (ProjectImageEntry<BufferedImage> entry : project.getImageList()) {
+            if (shardSize <= 0) {
+                manifest.addShard(entry, null, null, null, null);
+                continue;
+            }
+            int width;
+            int height;
+            // Only the server is built, as reading the image data would also read its whole hierarchy
+            try (ImageServer<BufferedImage> server = entry.getServerBuilder().build()) {
+                width = server.getWidth();
+                height = server.getHeight();
+            } catch (Exception e) {
+                throw new IOException("Could not read the size of " + entry.getImageName(), e);
+            }
+            if (width <= shardSize && height <= shardSize) {
+                manifest.addShard(entry, null, null, null, null);
+                continue;
+            }
+            for (int y = 0; y < height; y += shardSize) {
+                for (int x = 0; x < width; x += shardSize) {
+                    int minX = Math.max(0, x - overlap);
+                    int minY = Math.max(0, y - overlap);
+                    int maxX = Math.min(width, x + shardSize + overlap);
+                    int maxY = Math.min(height, y + shardSize + overlap);
+                    manifest.addShard(entry, minX, minY, maxX - minX, maxY - minY);
+                }
+            }
+        }
+        return manifest;
+    }
+
+    private void addShard(ProjectImageEntry<BufferedImage> entry, Integer x, Integer y, Integer width, Integer height) {
+        String id = String.format("%06d", shards.size());
+        shards.add(new Shard(id, entry.getID(), entry.getImageName(), x, y, width, height));
+    }
+
+    public static BatchManifest read(Path path) throws IOException {
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            return gson.fromJson(reader, BatchManifest.class);
+        }
+    }
+
+    public void write(Path path) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            gson.toJson(this, writer);
+        }
+    }
+
+    /**
+     * @return the path to the project file
+     */
+    public Path getProjectPath() {
+        return Path.of(project);
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public Map<String, JsonElement> getParameters() {
+        return parameters;
+    }
+
+    public List<Shard> getShards() {
+        return shards;
+    }
+}
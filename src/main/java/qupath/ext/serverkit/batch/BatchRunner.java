@@ -0,0 +1,321 @@
+package qupath.ext.serverkit.batch;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.net.InetAddress;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.locationtech.jts.geom.Geometry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+
+import qupath.ext.serverkit.client.Client;
+import qupath.ext.serverkit.client.ObjectMerger;
+import qupath.ext.serverkit.client.PipelineSettings;
+import qupath.ext.serverkit.client.ServerKitScripting;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.io.GsonTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectIO;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Runs an algorithm on a whole project with several independent QuPath processes, possibly
+ * on different nodes, sharing a directory:
+ * <ol>
+ * <li>{@link #createManifest} splits the project into shards and writes the manifest</li>
+ * <li>{@link #runWorker} is started on each node (e.g. with QuPath's command line script
+ * runner) and processes shards until none is left</li>
+ * <li>{@link #merge} adds the results of all the shards to the project</li>
+ * </ol>
+ * Each shard is processed on the annotations of its image (or the whole image if there are
+ * none), and its results are written to the shared directory. The project itself is only
+ * modified by the merge.
+ */
+public class BatchRunner {
+    private final static Logger logger = LoggerFactory.getLogger(BatchRunner.class);
+
+    // Time between two checks for abandoned shards while the other workers finish
+    static final long POLL_INTERVAL_MS = 30_000;
+
+    private static final Type PATH_OBJECT_LIST = new TypeToken<List<PathObject>>() {}.getType();
+
+    private BatchRunner() {
+    }
+
+    /**
+     * Split a project into shards and write the manifest of the batch run
+     *
+     * @param projectPath path to the project file
+     * @param manifestPath the manifest to write; its directory is shared by the workers
+     * @param algoName
+     * @param parameters parameter values by name, the others take their default value
+     * @param shardSize maximum width and height of a shard in pixels, or 0 for one shard per image
+     * @return the manifest
+     * @throws IOException
+     */
+    public static BatchManifest createManifest(Path projectPath, Path manifestPath, String algoName,
+            Map<String, ?> parameters, int shardSize) throws IOException {
+        Project<BufferedImage> project = ProjectIO.loadProject(projectPath.toFile(), BufferedImage.class);
+        BatchManifest manifest = BatchManifest.create(project, algoName, parameters, shardSize);
+        Files.createDirectories(manifestPath.toAbsolutePath().getParent());
+        manifest.write(manifestPath);
+        logger.info("Wrote {} shard(s) of {} to {}", manifest.getShards().size(), project.getName(), manifestPath);
+        return manifest;
+    }
+
+    /**
+     * Process shards of a batch run until they are all done. Shards claimed by other workers
+     * are waited for, and taken over if their worker stops updating them. A shard that cannot
+     * be processed is recorded as failed and released for another attempt, until it failed
+     * {@link ShardLedger#MAX_ATTEMPTS} times.
+     *
+     * @param manifestPath
+     * @return the number of shards processed by this worker
+     * @throws IOException if some shards failed too many times, once all the others are done
+     * @throws InterruptedException
+     */
+    public static int runWorker(Path manifestPath) throws IOException, InterruptedException {
+        BatchManifest manifest = BatchManifest.read(manifestPath);
+        ShardLedger ledger = new ShardLedger(manifestPath.toAbsolutePath().getParent());
+        Project<BufferedImage> project = ProjectIO.loadProject(manifest.getProjectPath().toFile(), BufferedImage.class);
+        String workerId = getWorkerId();
+        logger.info("Worker {} started on {}", workerId, manifestPath);
+
+        ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "serverkit-batch-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int processed = 0;
+        try {
+            while (true) {
+                BatchManifest.Shard shard = ledger.claimNext(manifest.getShards(), workerId);
+                if (shard == null) {
+                    if (manifest.getShards().stream().allMatch(s -> ledger.isDone(s) || ledger.hasFailed(s)))
+                        break;
+                    // The remaining shards are claimed by other workers: wait in case one of them dies
+                    Thread.sleep(POLL_INTERVAL_MS);
+                    continue;
+                }
+                long period = ShardLedger.LEASE.toMillis() / 3;
+                Thread worker = Thread.currentThread();
+                AtomicBoolean lost = new AtomicBoolean();
+                AtomicBoolean finished = new AtomicBoolean();
+                ScheduledFuture<?> heartbeat = heartbeats.scheduleAtFixedRate(() -> {
+                    try {
+                        if (ledger.heartbeat(shard, workerId))
+                            return;
+                        // Another worker took the shard over: stop processing it, unless this is already done
+                        synchronized (lost) {
+                            if (!finished.get() && !lost.getAndSet(true)) {
+                                logger.warn("Shard {} was taken over by another worker", shard.id());
+                                worker.interrupt();
+                            }
+                        }
+                    } catch (IOException e) {
+                        logger.warn("Could not extend the lease of shard {}: {}", shard.id(), e.getLocalizedMessage());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, period, period, TimeUnit.MILLISECONDS);
+                try {
+                    try {
+                        processShard(project, manifest, ledger, shard);
+                        ledger.complete(shard, workerId);
+                        processed++;
+                    } catch (IOException | RuntimeException e) {
+                        // Move on to the other shards: this one is left to another attempt
+                        logger.error("Could not process shard {} of {}", shard.id(), shard.imageName(), e);
+                        ledger.fail(shard, workerId, e.getLocalizedMessage());
+                    }
+                } catch (InterruptedException e) {
+                    if (!lost.get())
+                        throw e;
+                    logger.info("Stopped processing shard {}, now processed by another worker", shard.id());
+                } finally {
+                    heartbeat.cancel(false);
+                    synchronized (lost) {
+                        finished.set(true);
+                        // Clear an interrupt of the heartbeat that was not handled while processing
+                        if (lost.get())
+                            Thread.interrupted();
+                    }
+                }
+            }
+        } finally {
+            heartbeats.shutdownNow();
+        }
+        logger.info("Worker {} processed {} shard(s)", workerId, processed);
+        List<String> failed = manifest.getShards().stream()
+                .filter(shard -> !ledger.isDone(shard))
+                .map(BatchManifest.Shard::id)
+                .toList();
+        if (!failed.isEmpty())
+            throw new IOException(failed.size() + " shard(s) failed " + ShardLedger.MAX_ATTEMPTS + " times: " + failed);
+        return processed;
+    }
+
+    /**
+     * Add the results of all the shards to the images of the project, merging the duplicates
+     * found in the overlap of neighbouring shards and with previous results of the algorithm
+     * (depending on the {@link PipelineSettings})
+     *
+     * @param manifestPath
+     * @throws IOException if some shards are not done yet
+     */
+    public static void merge(Path manifestPath) throws IOException {
+        BatchManifest manifest = BatchManifest.read(manifestPath);
+        ShardLedger ledger = new ShardLedger(manifestPath.toAbsolutePath().getParent());
+        long remaining = manifest.getShards().stream().filter(shard -> !ledger.isDone(shard)).count();
+        if (remaining > 0)
+            throw new IOException(remaining + " shard(s) of " + manifestPath + " are not done yet");
+
+        Project<BufferedImage> project = ProjectIO.loadProject(manifest.getProjectPath().toFile(), BufferedImage.class);
+        Map<String, List<BatchManifest.Shard>> shardsByEntry = new LinkedHashMap<>();
+        for (BatchManifest.Shard shard : manifest.getShards()) {
+            shardsByEntry.computeIfAbsent(shard.entryId(), id -> new ArrayList<>()).add(shard);
+        }
+        String algoName = manifest.getAlgorithm();
+        PipelineSettings settings = Client.getInstance().getPipelineSettings();
+        Gson gson = GsonTools.getInstance();
+
+        for (Map.Entry<String, List<BatchManifest.Shard>> entry : shardsByEntry.entrySet()) {
+            ProjectImageEntry<BufferedImage> imageEntry = findEntry(project, entry.getKey());
+            ImageData<BufferedImage> imageData = imageEntry.readImageData();
+            PathObjectHierarchy hierarchy = imageData.getHierarchy();
+
+            List<PathObject> previousResults = hierarchy.getDetectionObjects().stream()
+                    .filter(p -> algoName.equals(p.getMetadata().get(Client.ALGORITHM_METADATA_KEY)))
+                    .toList();
+            ObjectMerger merger = settings.isMergeDuplicates() ? new ObjectMerger(settings.getMergeIoUThreshold()) : null;
+            Set<PathObject> added = new LinkedHashSet<>();
+            List<PathObject> removed = new ArrayList<>();
+            if (settings.isReplacePreviousResults())
+                removed.addAll(previousResults);
+            else if (merger != null)
+                merger.addPrevious(previousResults);
+
+            List<BatchManifest.Shard> shards = entry.getValue();
+            for (int i = 0; i < shards.size(); i++) {
+                BatchManifest.Shard shard = shards.get(i);
+                List<PathObject> shardResults;
+                try (Reader reader = Files.newBufferedReader(ledger.getResultsPath(shard), StandardCharsets.UTF_8)) {
+                    shardResults = gson.fromJson(JsonParser.parseReader(reader), PATH_OBJECT_LIST);
+                }
+                shardResults.forEach(p -> p.getMetadata().put(Client.ALGORITHM_METADATA_KEY, algoName));
+                if (merger == null) {
+                    added.addAll(shardResults);
+                    continue;
+                }
+                ObjectMerger.Result merged = merger.add(shardResults, i);
+                for (PathObject pathObject : merged.removed()) {
+                    if (!added.remove(pathObject))
+                        removed.add(pathObject);
+                }
+                added.addAll(merged.added());
+            }
+
+            hierarchy.removeObjects(removed, false);
+            hierarchy.addObjects(added);
+            imageEntry.saveImageData(imageData);
+            logger.info("Added {} object(s) to {}", added.size(), imageEntry.getImageName());
+        }
+        project.syncChanges();
+    }
+
+    private static void processShard(Project<BufferedImage> project, BatchManifest manifest, ShardLedger ledger,
+            BatchManifest.Shard shard) throws IOException, InterruptedException {
+        ProjectImageEntry<BufferedImage> entry = findEntry(project, shard.entryId());
+        ImageData<BufferedImage> imageData = entry.readImageData();
+        try {
+            List<ROI> targets = getTargets(imageData, shard);
+            List<PathObject> results = targets.isEmpty() ? List.of()
+                    : ServerKitScripting.run(imageData, targets, manifest.getAlgorithm(), manifest.getParameters(), false);
+            ledger.writeResults(shard, GsonTools.getInstance().toJson(results, PATH_OBJECT_LIST));
+            logger.info("Shard {} of {}: {} object(s)", shard.id(), shard.imageName(), results.size());
+        } catch (URISyntaxException | ExecutionException e) {
+            throw new IOException(e);
+        } finally {
+            try {
+                imageData.getServer().close();
+            } catch (Exception e) {
+                logger.warn("Could not close {}: {}", shard.imageName(), e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the ROIs of the annotations of the image (or of the whole image if there is no
+     *         annotation), restricted to the region of the shard
+     */
+    private static List<ROI> getTargets(ImageData<BufferedImage> imageData, BatchManifest.Shard shard) {
+        List<ROI> rois = imageData.getHierarchy().getAnnotationObjects().stream()
+                .map(PathObject::getROI)
+                .filter(ROI::isArea)
+                .toList();
+        if (rois.isEmpty()) {
+            ImageServer<BufferedImage> server = imageData.getServer();
+            rois = List.of(ROIs.createRectangleROI(0, 0, server.getWidth(), server.getHeight(), ImagePlane.getDefaultPlane()));
+        }
+        if (!shard.hasRegion())
+            return rois;
+
+        List<ROI> targets = new ArrayList<>();
+        for (ROI roi : rois) {
+            Geometry region = ROIs.createRectangleROI(shard.x(), shard.y(), shard.width(), shard.height(),
+                    roi.getImagePlane()).getGeometry();
+            Geometry geometry = roi.getGeometry().intersection(region);
+            if (!geometry.isEmpty())
+                targets.add(GeometryTools.geometryToROI(geometry, roi.getImagePlane()));
+        }
+        return targets;
+    }
+
+    private static ProjectImageEntry<BufferedImage> findEntry(Project<BufferedImage> project, String entryId)
+            throws IOException {
+        return project.getImageList().stream()
+                .filter(entry -> entry.getID().equals(entryId))
+                .findFirst()
+                .orElseThrow(() -> new IOException("No image with ID " + entryId + " in " + project.getPath()));
+    }
+
+    private static String getWorkerId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "unknown";
+        }
+        return host + "-" + ProcessHandle.current().pid();
+    }
+}
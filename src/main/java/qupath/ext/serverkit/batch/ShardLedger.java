@@ -0,0 +1,316 @@
+package qupath.ext.serverkit.batch;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coordinates the workers of a batch run through files in a shared directory, so that
+ * no broker is needed: any filesystem visible to all the nodes (e.g. NFS) will do.
+ * <ul>
+ * <li>{@code lock/}: directory held while a worker picks a shard, its creation is atomic; its
+ * {@code owner} file identifies the holder</li>
+ * <li>{@code claims/<shard>}: the worker processing a shard, rewritten regularly as a heartbeat</li>
+ * <li>{@code done/<shard>}: the shards completed, their results being in {@code results/<shard>.json}</li>
+ * <li>{@code failed/<shard>}: one line per failed attempt to process a shard</li>
+ * </ul>
+ * A claim that was not touched for longer than the lease (e.g. because its worker died) can
+ * be taken over by another worker, after which its first worker can neither extend, complete
+ * nor fail it. Ages are measured against the clock of the shared
+ * filesystem, by writing the {@code clock} file, so that the clocks of the nodes do not matter.
+ */
+class ShardLedger {
+    private final static Logger logger = LoggerFactory.getLogger(ShardLedger.class);
+
+    // Claims not touched for this long are considered abandoned
+    static final Duration LEASE = Duration.ofMinutes(10);
+
+    // A lock held for this long is considered abandoned by a dead worker
+    static final Duration LOCK_TIMEOUT = Duration.ofMinutes(1);
+
+    // Number of failed attempts after which a shard is not claimed anymore
+    static final int MAX_ATTEMPTS = 3;
+
+    private static final String OWNER_FILE = "owner";
+
+    private final Path lockDir;
+    private final Path clockFile;
+    private final Path claimsDir;
+    private final Path doneDir;
+    private final Path failedDir;
+    private final Path resultsDir;
+
+    /**
+     * @param directory shared directory of the batch run, usually the one of the manifest
+     * @throws IOException
+     */
+    ShardLedger(Path directory) throws IOException {
+        this.lockDir = directory.resolve("lock");
+        this.clockFile = directory.resolve("clock");
+        this.claimsDir = Files.createDirectories(directory.resolve("claims"));
+        this.doneDir = Files.createDirectories(directory.resolve("done"));
+        this.failedDir = Files.createDirectories(directory.resolve("failed"));
+        this.resultsDir = Files.createDirectories(directory.resolve("results"));
+    }
+
+    /**
+     * Claim the first shard that is neither done, failed too many times, nor claimed by a live worker
+     *
+     * @param shards
+     * @param workerId
+     * @return the shard claimed, or null if there is none available
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    BatchManifest.Shard claimNext(List<BatchManifest.Shard> shards, String workerId)
+            throws IOException, InterruptedException {
+        String token = lock();
+        try {
+            Instant now = now();
+            for (BatchManifest.Shard shard : shards) {
+                if (isDone(shard) || hasFailed(shard))
+                    continue;
+                Path claim = claimsDir.resolve(shard.id());
+                if (Files.exists(claim)) {
+                    if (!isExpired(claim, LEASE, now))
+                        continue;
+                    logger.warn("Taking over shard {} abandoned by {}", shard.id(), readQuietly(claim));
+                }
+                Files.writeString(claim, workerId, StandardCharsets.UTF_8);
+                return shard;
+            }
+            return null;
+        } finally {
+            unlock(token);
+        }
+    }
+
+    /**
+     * Extend the lease of a shard claimed by a worker
+     *
+     * @param shard
+     * @param workerId
+     * @return false if another worker took the shard over, in which case this worker should stop processing it
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    boolean heartbeat(BatchManifest.Shard shard, String workerId) throws IOException, InterruptedException {
+        String token = lock();
+        try {
+            if (!isClaimedBy(shard, workerId))
+                return false;
+            // Written rather than touched, so that the time comes from the filesystem
+            Files.writeString(claimsDir.resolve(shard.id()), workerId, StandardCharsets.UTF_8);
+            return true;
+        } finally {
+            unlock(token);
+        }
+    }
+
+    /**
+     * Mark a shard claimed by a worker as done, once its results are written
+     *
+     * @param shard
+     * @param workerId
+     * @throws IOException if another worker took the shard over and has not completed it yet
+     * @throws InterruptedException
+     */
+    void complete(BatchManifest.Shard shard, String workerId) throws IOException, InterruptedException {
+        String token = lock();
+        try {
+            if (isDone(shard))
+                return;
+            if (!isClaimedBy(shard, workerId))
+                throw new IOException("Shard " + shard.id() + " was taken over by "
+                        + readQuietly(claimsDir.resolve(shard.id())));
+            Files.writeString(doneDir.resolve(shard.id()), Instant.now().toString(), StandardCharsets.UTF_8);
+            Files.deleteIfExists(claimsDir.resolve(shard.id()));
+        } finally {
+            unlock(token);
+        }
+    }
+
+    /**
+     * Record a failed attempt to process a shard claimed by a worker, and give it up so that
+     * another worker can try again. Nothing is recorded if another worker took the shard over.
+     *
+     * @param shard
+     * @param workerId
+     * @param error
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    void fail(BatchManifest.Shard shard, String workerId, String error) throws IOException, InterruptedException {
+        String token = lock();
+        try {
+            if (!isClaimedBy(shard, workerId)) {
+                logger.warn("Shard {} was taken over by another worker, its failure is not recorded", shard.id());
+                return;
+            }
+            String line = Instant.now() + " " + workerId + ": " + String.valueOf(error).replaceAll("\\R", " ")
+                    + System.lineSeparator();
+            Files.writeString(failedDir.resolve(shard.id()), line, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            Files.deleteIfExists(claimsDir.resolve(shard.id()));
+        } finally {
+            unlock(token);
+        }
+    }
+
+    private boolean isClaimedBy(BatchManifest.Shard shard, String workerId) throws IOException {
+        try {
+            return workerId.equals(Files.readString(claimsDir.resolve(shard.id()), StandardCharsets.UTF_8));
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    boolean isDone(BatchManifest.Shard shard) {
+        return Files.exists(doneDir.resolve(shard.id()));
+    }
+
+    /**
+     * @param shard
+     * @return true if the shard failed {@link #MAX_ATTEMPTS} times and should not be claimed anymore
+     */
+    boolean hasFailed(BatchManifest.Shard shard) {
+        try {
+            return Files.readAllLines(failedDir.resolve(shard.id()), StandardCharsets.UTF_8).size() >= MAX_ATTEMPTS;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            logger.warn("Could not read the failures of shard {}: {}", shard.id(), e.getLocalizedMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @param shard
+     * @return the file of the results of a shard
+     */
+    Path getResultsPath(BatchManifest.Shard shard) {
+        return resultsDir.resolve(shard.id() + ".json");
+    }
+
+    /**
+     * Write the results of a shard so that they are either complete or absent, even if the
+     * worker dies while writing
+     *
+     * @param shard
+     * @param json
+     * @throws IOException
+     */
+    void writeResults(BatchManifest.Shard shard, String json) throws IOException {
+        Path path = getResultsPath(shard);
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.writeString(tempPath, json, StandardCharsets.UTF_8);
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Take the lock, waiting for other workers to release it
+     *
+     * @return the token identifying the lock taken, so that a lock broken by another worker is left alone
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private String lock() throws IOException, InterruptedException {
+        String token = UUID.randomUUID().toString();
+        while (true) {
+            try {
+                Files.createDirectory(lockDir);
+                Files.writeString(lockDir.resolve(OWNER_FILE), token, StandardCharsets.UTF_8);
+                return token;
+            } catch (FileAlreadyExistsException e) {
+                String owner = readToken(lockDir);
+                if (isExpired(lockDir, LOCK_TIMEOUT, now()) && removeLock(owner)) {
+                    logger.warn("Removed the abandoned lock {}", lockDir);
+                } else {
+                    Thread.sleep(100 + (long) (Math.random() * 400));
+                }
+            } catch (NoSuchFileException e) {
+                // The lock was broken by another worker before the owner was written: try again
+            }
+        }
+    }
+
+    private void unlock(String token) throws IOException {
+        if (!removeLock(token))
+            logger.warn("The lock {} was broken by another worker while held", lockDir);
+    }
+
+    /**
+     * Remove the lock if it is held with the given token. The token is checked, then the lock
+     * is renamed, which only one worker can do, and deleted only if the renamed lock still has
+     * the token. A lock is never renamed back, as another worker may have created a new one in
+     * the meantime: if the lock changed between the check and the rename, it is left renamed.
+     *
+     * @param token the token of the lock, or null for a lock whose owner was never written
+     * @return true if the lock held with the token was removed
+     * @throws IOException
+     */
+    private boolean removeLock(String token) throws IOException {
+        if (!Objects.equals(token, readToken(lockDir)))
+            return false;
+        Path removed = lockDir.resolveSibling(lockDir.getFileName() + "." + UUID.randomUUID() + ".removed");
+        try {
+            Files.move(lockDir, removed, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        if (!Objects.equals(token, readToken(removed))) {
+            logger.warn("The lock {} was taken by another worker while being removed, left as {}", lockDir, removed);
+            return false;
+        }
+        Files.deleteIfExists(removed.resolve(OWNER_FILE));
+        Files.deleteIfExists(removed);
+        return true;
+    }
+
+    private static String readToken(Path lock) {
+        try {
+            return Files.readString(lock.resolve(OWNER_FILE), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the current time of the shared filesystem, which sets the modification times
+     * @throws IOException
+     */
+    private Instant now() throws IOException {
+        Files.writeString(clockFile, "", StandardCharsets.UTF_8);
+        return Files.getLastModifiedTime(clockFile).toInstant();
+    }
+
+    private static boolean isExpired(Path path, Duration timeout, Instant now) throws IOException {
+        try {
+            Instant modified = Files.getLastModifiedTime(path).toInstant();
+            return modified.plus(timeout).isBefore(now);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private static String readQuietly(Path path) {
+        try {
+            return Files.readString(path, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return "an unknown worker";
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package qupath.ext.serverkit.client;
+
+import java.net.http.HttpHeaders;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Adjusts the tile size and the number of requests in flight from the measured latency and
+ * throughput of the requests, with additive-increase / multiplicative-decrease (AIMD) control.
+ * <ul>
+ * <li>Concurrency: the limit grows by about one request per round trip while the latency per
+ * pixel of full-size tiles stays close to the best one measured, up to the number of request
+ * threads, and is halved when it inflates (the server or the link is saturated) or when the
+ * server rejects a request as overloaded.
+ * Tiles clipped by the border of the region are not compared, as the fixed cost of a request
+ * weighs more on their fewer pixels.</li>
+ * <li>Tile size: it doubles while larger tiles process more pixels per second, and is halved
+ * when a request takes longer than {@link #TARGET_LATENCY_MS}, fails, or has a body too
+ * large for the server.</li>
+ * </ul>
+ * The tile size only changes the grid of the next regions: the grid of a region is decided
+ * once, from a few sizes (powers of two times {@link #MIN_TILE_SIZE}, or the size preferred
+ * by the server), and kept for the region, so that running again on the same region sends
+ * the same tiles and can reuse their results. Only the concurrency adapts during a run.
+ * The limits advertised by the server in the response headers of the connection
+ * ({@value #MAX_PAYLOAD_HEADER}, {@value #PREFERRED_TILE_SIZE_HEADER} and
+ * {@value #MAX_CONCURRENCY_HEADER}) are always respected.
+ */
+class AdaptiveController {
+    private final static Logger logger = LoggerFactory.getLogger(AdaptiveController.class);
+
+    static final String MAX_PAYLOAD_HEADER = "X-Max-Payload-Bytes";
+    static final String PREFERRED_TILE_SIZE_HEADER = "X-Preferred-Tile-Size";
+    static final String MAX_CONCURRENCY_HEADER = "X-Max-Concurrency";
+
+    static final int MIN_TILE_SIZE = 256;
+    static final int MAX_TILE_SIZE = 8192;
+    static final int MAX_CONCURRENCY = 16;
+
+    // Number of regions whose tile size is remembered
+    static final int MAX_REGIONS = 256;
+
+    // Requests taking longer than this make the tiles smaller
+    static final long TARGET_LATENCY_MS = 10_000;
+
+    // Latency per pixel above this multiple of the best one is considered congestion
+    static final double LATENCY_TOLERANCE = 2.0;
+
+    // Relative throughput gain needed to keep growing the tiles
+    static final double MIN_GAIN = 0.1;
+
+    // Weight of the latest measurement in the moving averages
+    private static final double ALPHA = 0.3;
+
+    private int tileSize;
+    private double concurrencyLimit;
+    // Number of threads sending the requests, above which the limit does not grow
+    private int maxConcurrency = MAX_CONCURRENCY;
+    private int inFlight;
+
+    // Tile size used for each region processed, least recently used first
+    private final Map<RegionRequest, Integer> regionTileSizes = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<RegionRequest, Integer> eldest) {
+            return size() > MAX_REGIONS;
+        }
+    };
+
+    // Limits advertised by the server, 0 if unknown
+    private long maxPayloadBytes;
+    private int preferredTileSize;
+    private int serverMaxConcurrency;
+
+    // Request body bytes per tile pixel, to keep the bodies under the payload limit
+    private double bodyBytesPerPixel = Double.NaN;
+
+    // Best latency per pixel seen, slowly forgotten so that the baseline can follow the server
+    private double baselineNanosPerPixel = Double.NaN;
+
+    // Pixels per second per request at the current and previous tile sizes
+    private double throughput = Double.NaN;
+    private double previousThroughput = Double.NaN;
+    private int samplesAtTileSize;
+    private boolean growTiles = true;
+
+    // Completions to wait for before the next decrease, so that the requests already in flight
+    // when congestion was detected do not decrease the limit again
+    private int decreaseHoldoff;
+
+    AdaptiveController(int initialTileSize, int initialConcurrency) {
+        reset(initialTileSize, initialConcurrency);
+    }
+
+    /**
+     * Forget the measurements and the server limits, e.g. when connecting to another server
+     *
+     * @param initialTileSize
+     * @param initialConcurrency
+     */
+    synchronized void reset(int initialTileSize, int initialConcurrency) {
+        tileSize = clampTileSize(initialTileSize);
+        concurrencyLimit = Math.max(1, Math.min(MAX_CONCURRENCY, initialConcurrency));
+        regionTileSizes.clear();
+        maxPayloadBytes = 0;
+        preferredTileSize = 0;
+        serverMaxConcurrency = 0;
+        bodyBytesPerPixel = Double.NaN;
+        baselineNanosPerPixel = Double.NaN;
+        throughput = Double.NaN;
+        previousThroughput = Double.NaN;
+        samplesAtTileSize = 0;
+        growTiles = true;
+        decreaseHoldoff = 0;
+        notifyAll();
+    }
+
+    /**
+     * Read the limits advertised by the server
+     *
+     * @param headers response headers of the server
+     */
+    synchronized void setServerLimits(HttpHeaders headers) {
+        maxPayloadBytes = headers.firstValueAsLong(MAX_PAYLOAD_HEADER).orElse(0);
+        preferredTileSize = (int) headers.firstValueAsLong(PREFERRED_TILE_SIZE_HEADER).orElse(0);
+        serverMaxConcurrency = (int) headers.firstValueAsLong(MAX_CONCURRENCY_HEADER).orElse(0);
+        if (preferredTileSize > 0) {
+            preferredTileSize = clampTileSize(preferredTileSize);
+            tileSize = preferredTileSize;
+        }
+        if (maxPayloadBytes > 0 || preferredTileSize > 0 || serverMaxConcurrency > 0)
+            logger.info("Server limits: max payload {} bytes, preferred tile size {}, max concurrency {}",
+                    maxPayloadBytes, preferredTileSize, serverMaxConcurrency);
+    }
+
+    /**
+     * Get the size of the tiles of a region, the same as the last time the region was processed
+     * unless it does not fit the current limits anymore
+     *
+     * @param region
+     * @param regionPixels number of pixels of the region to process, at the region downsample
+     * @param maxTileSize largest tile size allowed, e.g. by the memory budget
+     * @return the size of all the tiles of the region
+     */
+    synchronized int getTileSize(RegionRequest region, long regionPixels, int maxTileSize) {
+        int maxSize = Math.min(maxTileSize, getMaxPayloadTileSize());
+        Integer previous = regionTileSizes.get(region);
+        if (previous != null && previous <= maxSize)
+            return previous;
+        int size = Math.min(tileSize, maxSize);
+        // Keep enough tiles to use all the requests allowed in flight
+        size = Math.min(size, (int) Math.sqrt((double) regionPixels / Math.floor(concurrencyLimit)));
+        size = snapTileSize(size);
+        regionTileSizes.put(region, size);
+        return size;
+    }
+
+    /**
+     * @param size
+     * @return the largest size allowed for a grid not above the given size, or the smallest one
+     */
+    private int snapTileSize(int size) {
+        int snapped = MIN_TILE_SIZE;
+        while (snapped * 2 <= Math.min(size, MAX_TILE_SIZE)) {
+            snapped *= 2;
+        }
+        if (preferredTileSize > snapped && preferredTileSize <= size)
+            snapped = preferredTileSize;
+        return snapped;
+    }
+
+    private int getMaxPayloadTileSize() {
+        if (maxPayloadBytes <= 0 || Double.isNaN(bodyBytesPerPixel))
+            return MAX_TILE_SIZE;
+        return (int) Math.sqrt(0.9 * maxPayloadBytes / bodyBytesPerPixel);
+    }
+
+    /**
+     * Get the number of threads to send the requests of a run with, which also bounds the
+     * number of requests allowed in flight
+     *
+     * @param requestThreads maximum number of concurrent requests set by the user
+     * @return the number of threads, within the limit of the server if it advertises one
+     */
+    synchronized int getRequestThreads(int requestThreads) {
+        int threads = Math.max(1, requestThreads);
+        if (serverMaxConcurrency > 0)
+            threads = Math.min(threads, serverMaxConcurrency);
+        maxConcurrency = threads;
+        concurrencyLimit = Math.min(concurrencyLimit, maxConcurrency);
+        return threads;
+    }
+
+    /**
+     * @return the number of requests allowed in flight
+     */
+    synchronized int getConcurrencyLimit() {
+        int limit = (int) Math.floor(concurrencyLimit);
+        return serverMaxConcurrency > 0 ? Math.min(limit, serverMaxConcurrency) : limit;
+    }
+
+    /**
+     * Wait until one more request is allowed in flight
+     *
+     * @throws InterruptedException
+     */
+    synchronized void acquire() throws InterruptedException {
+        while (inFlight >= getConcurrencyLimit()) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * @param pixels number of pixels of an encoded tile
+     * @param bodyBytes size of its request body
+     */
+    synchronized void recordEncoded(long pixels, long bodyBytes) {
+        if (pixels <= 0)
+            return;
+        bodyBytesPerPixel = update(bodyBytesPerPixel, (double) bodyBytes / pixels);
+    }
+
+    /**
+     * Record a successful request
+     *
+     * @param pixels number of pixels of the tile
+     * @param latencyNanos time from sending the request to parsing the response, without the
+     *                     time spent decoding the streamed results
+     * @param fullSize false if the tile is clipped by the border of its region, in which case
+     *                 its latency per pixel is not comparable with the others
+     */
+    synchronized void recordSuccess(long pixels, long latencyNanos, boolean fullSize) {
+        if (pixels <= 0 || latencyNanos <= 0)
+            return;
+        if (!fullSize) {
+            if (decreaseHoldoff > 0)
+                decreaseHoldoff--;
+            return;
+        }
+        double nanosPerPixel = (double) latencyNanos / pixels;
+        if (Double.isNaN(baselineNanosPerPixel) || nanosPerPixel < baselineNanosPerPixel)
+            baselineNanosPerPixel = nanosPerPixel;
+        else
+            baselineNanosPerPixel *= 1.01;
+
+        // Concurrency
+        if (decreaseHoldoff > 0)
+            decreaseHoldoff--;
+        if (nanosPerPixel > LATENCY_TOLERANCE * baselineNanosPerPixel)
+            decreaseConcurrency("latency inflation");
+        else
+            concurrencyLimit = Math.min(maxConcurrency, concurrencyLimit + 1 / concurrencyLimit);
+        notifyAll();
+
+        // Tile size
+        if (latencyNanos > TARGET_LATENCY_MS * 1_000_000) {
+            setTileSize(tileSize / 2, "latency above target");
+            return;
+        }
+        throughput = update(throughput, 1e9 / nanosPerPixel);
+        if (++samplesAtTileSize < Math.max(4, getConcurrencyLimit()))
+            return;
+        if (!Double.isNaN(previousThroughput) && throughput < previousThroughput * (1 + MIN_GAIN))
+            growTiles = false;
+        if (growTiles && tileSize < MAX_TILE_SIZE) {
+            previousThroughput = throughput;
+            setTileSize(tileSize * 2, "throughput increasing");
+        }
+    }
+
+    /**
+     * Record a request rejected by the server
+     *
+     * @param statusCode HTTP status code
+     * @param bodyBytes size of the request body
+     */
+    synchronized void recordFailure(int statusCode, long bodyBytes) {
+        if (statusCode == 413) {
+            // Payload Too Large
+            if (maxPayloadBytes <= 0 || bodyBytes <= maxPayloadBytes)
+                maxPayloadBytes = bodyBytes - 1;
+            setTileSize(tileSize / 2, "payload too large");
+        } else if (statusCode == 429 || statusCode == 503) {
+            decreaseConcurrency("server overloaded");
+        } else if (statusCode >= 500) {
+            decreaseConcurrency("server error");
+            setTileSize(tileSize / 2, "server error");
+        }
+        notifyAll();
+    }
+
+    private void decreaseConcurrency(String reason) {
+        if (decreaseHoldoff > 0)
+            return;
+        double previous = concurrencyLimit;
+        concurrencyLimit = Math.max(1, concurrencyLimit / 2);
+        decreaseHoldoff = inFlight;
+        logger.debug("Concurrency limit {} -> {} ({})", (int) previous, (int) concurrencyLimit, reason);
+    }
+
+    private void setTileSize(int size, String reason) {
+        size = clampTileSize(size);
+        if (size < tileSize) {
+            // Growing again is only worth it if conditions change: start measuring from scratch
+            growTiles = size != tileSize / 2;
+            previousThroughput = Double.NaN;
+        }
+        if (size != tileSize)
+            logger.debug("Tile size {} -> {} ({})", tileSize, size, reason);
+        tileSize = size;
+        throughput = Double.NaN;
+        samplesAtTileSize = 0;
+    }
+
+    private static int clampTileSize(int size) {
+        return Math.max(MIN_TILE_SIZE, Math.min(MAX_TILE_SIZE, size));
+    }
+
+    private static double update(double average, double value) {
+        return Double.isNaN(average) ? value : ALPHA * value + (1 - ALPHA) * average;
+    }
+}
@@ -4,15 +4,25 @@ import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBuffer;
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.*;
 
@@ -22,6 +32,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -31,6 +42,12 @@ import ij.ImagePlus;
 import ij.io.FileSaver;
 import javafx.collections.ObservableList;
 import javafx.application.Platform;
+import qupath.ext.serverkit.metrics.DecodeEvent;
+import qupath.ext.serverkit.metrics.EncodeEvent;
+import qupath.ext.serverkit.metrics.MetricsRegistry;
+import qupath.ext.serverkit.metrics.ProcessRequestEvent;
+import qupath.ext.serverkit.metrics.RegionReadEvent;
+import qupath.ext.serverkit.metrics.Stage;
 import qupath.fx.dialogs.Dialogs;
 import qupath.imagej.tools.IJTools;
 import qupath.lib.awt.common.AwtTools;
@@ -44,6 +61,7 @@ import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.TransformedServerBuilder;
 import qupath.lib.io.GsonTools;
+import qupath.lib.measurements.MeasurementList;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjects;
 import qupath.lib.objects.PathObjectTools;
@@ -61,7 +79,21 @@ public class Client {
     private final static Logger logger = LoggerFactory.getLogger(Client.class);
 
     // Python API URL defined by the hostname or IP address and port of the server
-    private URL apiUrl;
+    private volatile URL apiUrl;
+
+    // Runs in progress, during which the client does not connect to another server
+    private int activeRuns;
+
+    // Requests rejected as overloaded are sent again up to this number of times, waiting
+    // RETRY_DELAY_MS the first time and twice longer each following time
+    private static final int MAX_OVERLOAD_RETRIES = 3;
+    private static final long RETRY_DELAY_MS = 500;
+
+    // Media type of the responses streaming the results one per line as they are ready
+    static final String NDJSON_MEDIA_TYPE = "application/x-ndjson";
+
+    // Unreachable servers are reported after this delay instead of the system's TCP timeout
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
 
     // Default API URL
     public static String defaultUrl = "http://localhost:8000";
@@ -69,31 +101,123 @@ public class Client {
     // The client handling HTTP requests
     private final HttpClient httpClient;
 
+    // Timing and volume metrics of the runs
+    private final MetricsRegistry metrics = MetricsRegistry.getInstance();
+
+    // Tiling and concurrency of the runs
+    private volatile PipelineSettings pipelineSettings = new PipelineSettings();
+
+    // Negotiation of the request body compression
+    private final CompressionPolicy compressionPolicy = new CompressionPolicy();
+
+    // Images stored by the server, sent by handle instead of being uploaded again
+    private final ImageHandles imageHandles = new ImageHandles();
+
+    // Identical tile requests in flight at the same time (e.g. from overlapping runs) share their result
+    private final SingleFlight<TileResultCache.Key, List<PathObject>> tileFlights = new SingleFlight<>();
+
+    // Tunes the tile size and the number of concurrent requests from the measured throughput
+    private final AdaptiveController adaptiveController = new AdaptiveController(
+            pipelineSettings.getTileSize(), pipelineSettings.getRequestThreads());
+
+    // Metadata key recording the algorithm that created an object
+    public static final String ALGORITHM_METADATA_KEY = "serverkit.algorithm";
+
     private static Client instance = new Client();
 
     private Client() {
-        this.httpClient = HttpClient.newHttpClient();
+        this.httpClient = HttpClient.newBuilder().connectTimeout(CONNECT_TIMEOUT).build();
     }
 
     public static Client getInstance() {
         return instance;
     }
 
+    /**
+     * Connect to a server, forgetting what was learned about the previous one. Runs cannot
+     * start while connecting, so that they never see the state of two servers.
+     *
+     * @param URL
+     * @throws IOException if the server cannot be reached, or a run is in progress
+     */
     public void launchHttpClient(String URL) throws IOException {
         URL = URL.trim();
         if (URL.endsWith("/")) {
             URL = URL.substring(0, URL.length() - 1);
         }
-        this.apiUrl = new URL(URL);
+        URL url = new URL(URL);
+        synchronized (this) {
+            if (activeRuns > 0)
+                throw new IOException("Cannot connect to " + url + " while " + activeRuns + " run(s) are in progress");
+            this.apiUrl = url;
+            imageHandles.clear();
+            adaptiveController.reset(pipelineSettings.getTileSize(), pipelineSettings.getRequestThreads());
 
-        if (!this.isConnected())
-            throw new IOException();
+            if (!this.isConnected())
+                throw new IOException();
+        }
+    }
+
+    /**
+     * Forget the server and restore the default settings, e.g. between tests
+     */
+    synchronized void reset() {
+        apiUrl = null;
+        pipelineSettings = new PipelineSettings();
+        imageHandles.setEnabled(true);
+        imageHandles.clear();
+        compressionPolicy.setEnabled(true);
+        compressionPolicy.setServerAcceptEncoding(null);
+        adaptiveController.reset(pipelineSettings.getTileSize(), pipelineSettings.getRequestThreads());
+    }
+
+    // Waits for a connection in progress
+    private synchronized void beginRun() {
+        activeRuns++;
+    }
+
+    private synchronized void endRun() {
+        activeRuns--;
     }
 
     public URL getServerURL() {
         return apiUrl;
     }
 
+    /**
+     * Enable or disable the compression of request bodies. Even when enabled, bodies
+     * are only compressed if the server advertises support for it and if compressing
+     * is faster than sending the uncompressed body over the measured bandwidth.
+     *
+     * @param enabled
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        compressionPolicy.setEnabled(enabled);
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionPolicy.isEnabled();
+    }
+
+    /**
+     * @param enabled if true, the pixels stored by a server supporting it are referenced by
+     *                their content hash instead of being uploaded again
+     */
+    public void setImageHandlesEnabled(boolean enabled) {
+        imageHandles.setEnabled(enabled);
+    }
+
+    public boolean isImageHandlesEnabled() {
+        return imageHandles.isEnabled();
+    }
+
+    /**
+     * @return the tiling and concurrency settings used by the runs, which can be modified
+     */
+    public PipelineSettings getPipelineSettings() {
+        return pipelineSettings;
+    }
+
     /**
      * Check if the Http Client exists and can successfully connect to the server
      *
@@ -102,6 +226,8 @@ public class Client {
     public boolean isConnected() {
         try {
             HttpResponse<String> httpResponse = this.get("/");
+            compressionPolicy.setServerAcceptEncoding(httpResponse.headers().firstValue("Accept-Encoding").orElse(null));
+            adaptiveController.setServerLimits(httpResponse.headers());
             return httpResponse.statusCode() == 200;
         } catch (Exception e) {
             return false;
@@ -120,30 +246,109 @@ public class Client {
         HttpRequest httpRequest = HttpRequest.newBuilder()
                 .uri(URI.create(apiUrl + path))
                 .header("Content-Type", "application/json").version(HttpClient.Version.HTTP_1_1)
+                .header("Accept-Encoding", ContentEncodings.ACCEPT_ENCODING)
                 .GET()
                 .build();
-        return this.httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
+        return this.httpClient.send(httpRequest, responseInfo -> HttpResponse.BodySubscribers.mapping(
+                HttpResponse.BodySubscribers.ofByteArray(),
+                bytes -> {
+                    String encoding = responseInfo.headers().firstValue("Content-Encoding").orElse(null);
+                    try (InputStream stream = ContentEncodings.decode(new ByteArrayInputStream(bytes), encoding)) {
+                        return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
     }
 
     /**
-     * Send an HTTP POST request to the server with a body in String
+     * Send an HTTP POST request to the server with a body in String.
+     * The body is compressed if the {@link CompressionPolicy} allows it, and the
+     * response is requested in a compressed form; use {@link #openResponseBody(HttpResponse)}
+     * to read it.
      *
      * @param path relative path appended to the apiUrl
      * @param body Content as {@link String} to be sent in the body of the POST
      *             HttpRequest
-     * @return {@link HttpResponse<String>} from the server
+     * @param exchange used to measure the exchange, restarted so that it describes the last attempt
+     * @return {@link HttpResponse<InputStream>} from the server, with the body still encoded
      * @throws ExecutionException
      * @throws InterruptedException
      */
-    private HttpResponse<String> post(String path, String body) throws ExecutionException, InterruptedException {
-        HttpRequest httpRequest = HttpRequest.newBuilder()
+    private HttpResponse<InputStream> post(String path, String body, MeteredExchange exchange)
+            throws ExecutionException, InterruptedException {
+        exchange.restart();
+        byte[] rawBody = body.getBytes(StandardCharsets.UTF_8);
+        String encoding = compressionPolicy.chooseRequestEncoding(rawBody.length);
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
                 .uri(URI.create(apiUrl + path))
                 .header("Content-Type", "application/json")
                 .header("User-Agent", "Java/QuPath")
-                .version(HttpClient.Version.HTTP_1_1)
-                .POST(HttpRequest.BodyPublishers.ofString(body))
-                .build();
-        return this.httpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofString()).get();
+                .header("Accept", pipelineSettings.isStreamResults()
+                        ? NDJSON_MEDIA_TYPE + ", application/json;q=0.9" : "application/json")
+                .header("Accept-Encoding", ContentEncodings.ACCEPT_ENCODING)
+                .version(HttpClient.Version.HTTP_1_1);
+
+        ContentEncodings.TimedInputStream[] compressed = new ContentEncodings.TimedInputStream[1];
+        if (encoding == null) {
+            builder.POST(exchange.wrap(HttpRequest.BodyPublishers.ofByteArray(rawBody)));
+        } else {
+            builder.header("Content-Encoding", encoding);
+            builder.POST(exchange.wrap(HttpRequest.BodyPublishers.ofInputStream(() -> {
+                closeQuietly(compressed[0]);
+                compressed[0] = new ContentEncodings.TimedInputStream(
+                        ContentEncodings.encode(new ByteArrayInputStream(rawBody), encoding));
+                return compressed[0];
+            })));
+        }
+        CompletableFuture<HttpResponse<InputStream>> future = this.httpClient.sendAsync(builder.build(),
+                exchange.wrap(HttpResponse.BodyHandlers.ofInputStream()));
+        HttpResponse<InputStream> response;
+        try {
+            response = future.get();
+        } catch (InterruptedException e) {
+            // Interrupting the waiting thread does not stop the exchange: abort it too
+            future.cancel(true);
+            throw e;
+        } finally {
+            // Frees the compressor, whether the upload completed or not
+            closeQuietly(compressed[0]);
+        }
+
+        long compressNanos = compressed[0] == null ? 0 : compressed[0].getNanos();
+        compressionPolicy.recordUpload(rawBody.length, exchange.getBytesSent(), exchange.getUploadNanos(), compressNanos);
+
+        // 415 Unsupported Media Type: the server could not decode the compressed body
+        if (encoding != null && response.statusCode() == 415) {
+            try (InputStream ignored = response.body()) {
+                compressionPolicy.rejectRequestEncoding();
+            } catch (IOException ignored) {
+            }
+            return post(path, body, exchange);
+        }
+        return response;
+    }
+
+    private static void closeQuietly(InputStream stream) {
+        if (stream == null)
+            return;
+        try {
+            stream.close();
+        } catch (IOException e) {
+            logger.debug("Could not close a request body: {}", e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Open the body of a response, decompressing it according to its Content-Encoding
+     *
+     * @param response
+     * @return
+     * @throws IOException
+     */
+    private static InputStream openResponseBody(HttpResponse<InputStream> response) throws IOException {
+        return ContentEncodings.decode(response.body(),
+                response.headers().firstValue("Content-Encoding").orElse(null));
     }
 
     /**
@@ -196,12 +401,13 @@ public class Client {
      * @param response
      * @param description
      */
-    private void logHttpError(HttpResponse<String> response, String description) {
+    private void logHttpError(HttpResponse<InputStream> response, String description) {
         String detail = null;
-        try {
-            JsonElement jsonHttpResponse = parseResponseToJsonObject(response).get("detail");
+        try (InputStream body = openResponseBody(response)) {
+            JsonElement jsonHttpResponse = JsonParser.parseReader(new InputStreamReader(body, StandardCharsets.UTF_8))
+                    .getAsJsonObject().get("detail");
             detail = (jsonHttpResponse == null) ? null : jsonHttpResponse.getAsString();
-        } catch (IOException ignored) {
+        } catch (IOException | RuntimeException ignored) {
         }
         logger.error("{} (HTTP HttpResponse {}: {})",
                 description, response.statusCode(), detail);
@@ -209,8 +415,168 @@ public class Client {
 
     public void run(QuPathGUI qupath, QuPathViewer qupathViewer, String algoName, ParameterList parameterList)
             throws ExecutionException, IOException, InterruptedException, URISyntaxException {
-        
-        // Convert parametersList to a JsonArray
+        metrics.incrementRuns();
+        long runStart = System.nanoTime();
+        boolean success = false;
+        try {
+            success = runAndDisplay(qupath, qupathViewer, algoName, parameterList);
+        } finally {
+            metrics.recordSince(Stage.TOTAL, runStart);
+            if (!success)
+                metrics.incrementFailedRuns();
+        }
+    }
+
+    /**
+     * Run the algorithm on the selected annotation and display the results
+     *
+     * @return true if the server processed the request successfully
+     */
+    private boolean runAndDisplay(QuPathGUI qupath, QuPathViewer qupathViewer, String algoName,
+            ParameterList parameterList) throws ExecutionException, IOException, InterruptedException, URISyntaxException {
+
+        JsonArray serializedParams = serializeParameters(parameterList);
+
+        PathObject selectedObject = getSelectedObject(qupathViewer);
+        if (selectedObject == null) {
+            Dialogs.showErrorMessage("Imaging Server Kit Error", "No annotation selected");
+            return false;
+        }
+
+        ImageServer<BufferedImage> imageServer = getImageServer(qupathViewer);
+        RegionRequest viewerRegion = getRegionRequest(qupathViewer, imageServer, selectedObject);
+
+        // Display the objects of each tile as soon as it is decoded
+        PathObjectHierarchy hierarchy = qupathViewer.getImageData().getHierarchy();
+        ProgressiveResultDisplay display = new ProgressiveResultDisplay(hierarchy, selectedObject, algoName);
+        List<PathObject> replacedResults = getResultsToReplace(selectedObject, algoName);
+        // The same message usually comes with every tile: each distinct one is shown once, after the run
+        Set<ServerMessage> messages = ConcurrentHashMap.newKeySet();
+        try {
+            processRegion(imageServer, viewerRegion, selectedObject.getROI(), algoName, serializedParams,
+                    message -> {
+                        if (messages.add(message))
+                            message.log();
+                    },
+                    createResultSink(selectedObject, algoName, display::add, display::remove));
+            // The previous results are only replaced once the new ones are complete
+            display.remove(replacedResults);
+        } finally {
+            // Keep the results of the tiles that completed, even if the run failed
+            List<PathObject> resultObjects = display.finish();
+            Platform.runLater(() -> {
+                updateClassifications(qupath, resultObjects);
+                messages.forEach(Client::showMessage);
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Show a message of the server as a dialog or a notification, to be called on the FX thread
+     *
+     * @param message
+     */
+    private static void showMessage(ServerMessage message) {
+        switch (message.level()) {
+            case ERROR -> Dialogs.showErrorNotification(message.title(), message.text());
+            case WARNING -> Dialogs.showWarningNotification(message.title(), message.text());
+            default -> Dialogs.showInfoNotification(message.title(), message.text());
+        }
+    }
+
+    /**
+     * Get the results of a previous run of an algorithm on an object, to be removed once a new
+     * run completes when the {@link PipelineSettings} replace previous results. They are not
+     * removed up front, so that a run that fails or is cancelled keeps them.
+     *
+     * @param parentObject the object the algorithm runs on, or null
+     * @param algoName
+     * @return the results to replace, empty if previous results are kept
+     */
+    List<PathObject> getResultsToReplace(PathObject parentObject, String algoName) {
+        if (parentObject == null || !pipelineSettings.isReplacePreviousResults())
+            return List.of();
+        return getPreviousResults(parentObject, algoName);
+    }
+
+    private static List<PathObject> getPreviousResults(PathObject parentObject, String algoName) {
+        return parentObject.getChildObjects().stream()
+                .filter(p -> algoName.equals(p.getMetadata().get(ALGORITHM_METADATA_KEY)))
+                .toList();
+    }
+
+    /**
+     * Create the sink of a run on an object: the decoded objects of each tile are converted
+     * to detections, then merged with each other and with the previous results of the
+     * algorithm on the object, unless the {@link PipelineSettings} replace them (see
+     * {@link #getResultsToReplace(PathObject, String)})
+     *
+     * @param parentObject the object the algorithm runs on, or null
+     * @param algoName
+     * @param add receives the detections to add
+     * @param remove receives the detections to remove, either added before or from a previous run
+     * @return the sink
+     */
+    TilePipeline.Step createResultSink(PathObject parentObject, String algoName,
+            Consumer<List<PathObject>> add, Consumer<List<PathObject>> remove) {
+        ObjectMerger merger = pipelineSettings.isMergeDuplicates()
+                ? new ObjectMerger(pipelineSettings.getMergeIoUThreshold()) : null;
+        // Results of a previous run of this algorithm are merged with the new ones, unless they are replaced
+        if (parentObject != null && merger != null && !pipelineSettings.isReplacePreviousResults())
+            merger.addPrevious(getPreviousResults(parentObject, algoName));
+        return task -> {
+            List<PathObject> detections = createDetections(task.objects, algoName);
+            if (merger == null) {
+                add.accept(detections);
+            } else {
+                ObjectMerger.Result merged = merger.add(detections, task.index);
+                remove.accept(merged.removed());
+                add.accept(merged.added());
+            }
+        };
+    }
+
+    /**
+     * Convert decoded objects to detections, recording the algorithm in their metadata.
+     * The decoded objects may be shared with other runs, so each detection gets its own
+     * copy of the measurements.
+     *
+     * @param resultObjects
+     * @param algoName
+     * @return the detections
+     */
+    static List<PathObject> createDetections(List<PathObject> resultObjects, String algoName) {
+        List<PathObject> detections = new ArrayList<>(resultObjects.size());
+        for (PathObject obj : resultObjects) {
+            PathObject detection = createDetection(obj);
+            detection.getMetadata().put(ALGORITHM_METADATA_KEY, algoName);
+            detections.add(detection);
+        }
+        return detections;
+    }
+
+    /**
+     * Create a detection with the ROI and classification of an object, and a copy of its measurements
+     *
+     * @param pathObject
+     * @return the detection
+     */
+    public static PathObject createDetection(PathObject pathObject) {
+        PathObject detection = PathObjects.createDetectionObject(pathObject.getROI(), pathObject.getPathClass());
+        try (MeasurementList measurements = detection.getMeasurementList()) {
+            measurements.putAll(pathObject.getMeasurementList());
+        }
+        return detection;
+    }
+
+    /**
+     * Convert the algorithm parameters to the JsonArray expected by the server
+     *
+     * @param parameterList
+     * @return the serialized parameters, without the image
+     */
+    public static JsonArray serializeParameters(ParameterList parameterList) {
         JsonArray serializedParams = new JsonArray();
         Gson gson = new Gson();
         if (parameterList != null) {
@@ -234,207 +600,709 @@ public class Client {
                 serializedParams.add(newJsonObject);
             }
         }
+        return serializedParams;
+    }
 
-        // Get the b64-encoded image within the selected annotation as JSON
-        PathObject selectedObject = getSelectedObject(qupathViewer);
-        if (selectedObject == null) {
-            Dialogs.showErrorMessage("Imaging Server Kit Error", "No annotation selected");
-            return;
+    /**
+     * Run an algorithm on a single region of an image, without tiling, and wait for the result
+     *
+     * @param imageServer
+     * @param region
+     * @param algoName
+     * @param serializedParams the algorithm parameters, see {@link #serializeParameters(ParameterList)}
+     * @return the decoded objects, in the image coordinates
+     * @throws IOException if the region cannot be read or the server failed to process it
+     * @throws InterruptedException
+     */
+    public List<PathObject> runOnRegion(ImageServer<BufferedImage> imageServer, RegionRequest region,
+            String algoName, JsonArray serializedParams)
+            throws IOException, InterruptedException, URISyntaxException, ExecutionException {
+        beginRun();
+        try {
+            TileTask task = new TileTask(0, region, region);
+            SingleFlight.Flight<List<PathObject>> flight = tileFlights.join(
+                    new TileResultCache.Key(region, algoName, serializedParams.toString()));
+            if (!flight.leader()) {
+                List<PathObject> shared = awaitFlight(flight);
+                if (shared != null)
+                    return shared;
+            }
+            try {
+                List<PathObject> objects = processTile(imageServer, task, algoName, serializedParams);
+                flight.future().complete(objects);
+                return objects;
+            } catch (Exception e) {
+                flight.future().completeExceptionally(e);
+                throw e;
+            }
+        } finally {
+            endRun();
         }
+    }
 
-        ImageServer<BufferedImage> imageServer = getImageServer(qupathViewer);
-        RegionRequest viewerRegion = getRegionRequest(qupathViewer, imageServer, selectedObject);
+    /**
+     * Wait for the result of an identical request led by another caller
+     *
+     * @param flight
+     * @return the shared objects, or null if the leader failed and the caller should process the tile itself
+     * @throws InterruptedException
+     */
+    private List<PathObject> awaitFlight(SingleFlight.Flight<List<PathObject>> flight) throws InterruptedException {
+        try {
+            List<PathObject> shared = flight.future().get();
+            metrics.incrementCoalescedRequests();
+            return shared;
+        } catch (ExecutionException | CancellationException e) {
+            logger.debug("Identical request failed, processing the tile again: {}", e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    private List<PathObject> processTile(ImageServer<BufferedImage> imageServer, TileTask task, String algoName,
+            JsonArray serializedParams) throws IOException, InterruptedException, URISyntaxException, ExecutionException {
+        RegionRequest region = task.region;
+        ObjectSimplifier simplifier = createSimplifier();
+        List<PathObject> objects = new ArrayList<>();
+        try (MemoryBudget.Account account = MemoryBudget.getInstance().openAccount()) {
+            account.acquire(MemoryBudget.estimateBytes(imageServer, region));
+            task.image = readRegion(imageServer, null, task, algoName);
+            task.requestBody = encodeRequest(serializedParams, task, algoName);
+            task.image = null;
+            task.response = sendProcessRequest(algoName, serializedParams, task,
+                    result -> objects.addAll(decodeTileResult(result, task, algoName, simplifier, ServerMessage::log)));
+            task.requestBody = null;
+        }
+        if (!task.streamed) {
+            long parseStart = System.nanoTime();
+            objects.addAll(decodeResults(task.response, task, algoName, simplifier, ServerMessage::log));
+            metrics.recordSince(Stage.PARSE, parseStart);
+        }
+        metrics.addObjects(objects.size());
+        return objects;
+    }
+
+    /**
+     * Run an algorithm on a region of an image.
+     * <p>
+     * Regions larger than the tile size of the {@link PipelineSettings} are split into
+     * overlapping tiles (skipping those that do not intersect the ROI). The tiles go through a
+     * {@link TilePipeline} so that reading, encoding, requests to the server and
+     * decoding overlap, each stage with its own number of threads. Before its pixels
+     * are read, each tile waits for its estimated memory footprint to fit in the
+     * global {@link MemoryBudget}; the tile size is reduced if a single tile would
+     * not fit. The pixels of the next tiles are read ahead by a {@link RegionPrefetcher}.
+     * If the settings are adaptive, the {@link AdaptiveController} chooses the tile size
+     * once for the region, and adjusts the number of concurrent requests as the tiles are
+     * processed.
+     *
+     * @param imageServer
+     * @param region the full region to process
+     * @param roi if not null, only the tiles intersecting this ROI are processed
+     * @param algoName
+     * @param serializedParams the algorithm parameters, without the image
+     * @param messages receives the notifications of the server and the results that cannot be
+     *                 handled, from the worker threads
+     * @param sink receives each tile once all its objects are decoded, on the calling thread
+     * @throws ExecutionException if any tile failed
+     * @throws InterruptedException
+     */
+    void processRegion(ImageServer<BufferedImage> imageServer, RegionRequest region, ROI roi,
+            String algoName, JsonArray serializedParams, Consumer<ServerMessage> messages, TilePipeline.Step sink)
+            throws ExecutionException, InterruptedException {
+        beginRun();
+        try {
+            processTiles(imageServer, region, roi, algoName, serializedParams, messages, sink);
+        } finally {
+            endRun();
+        }
+    }
 
+    private void processTiles(ImageServer<BufferedImage> imageServer, RegionRequest region, ROI roi,
+            String algoName, JsonArray serializedParams, Consumer<ServerMessage> messages, TilePipeline.Step sink)
+            throws ExecutionException, InterruptedException {
+        MemoryBudget memoryBudget = MemoryBudget.getInstance();
+        boolean adaptive = pipelineSettings.isAdaptive();
+        int tileSize;
+        // The controller limits the requests actually in flight, up to the number of threads
+        int requestThreads = adaptiveController.getRequestThreads(pipelineSettings.getRequestThreads());
+        if (adaptive) {
+            int maxTileSize = memoryBudget.fitTileSize(imageServer, AdaptiveController.MAX_TILE_SIZE,
+                    adaptiveController.getConcurrencyLimit());
+            // Fixed for the whole run, and for the next runs on the same region
+            tileSize = adaptiveController.getTileSize(region, getPixelCount(region), maxTileSize);
+        } else {
+            tileSize = memoryBudget.fitTileSize(imageServer, pipelineSettings.getTileSize(), requestThreads);
+        }
+        TileGenerator generator = new TileGenerator(region, roi, tileSize, pipelineSettings.getTileOverlap());
+        logger.debug("Processing {} with {}", region, algoName);
+        // Flights led by this run and not completed yet, rather than all the tiles, whose objects they hold
+        Set<CompletableFuture<List<PathObject>>> pendingFlights = ConcurrentHashMap.newKeySet();
+
+        int capacity = pipelineSettings.getQueueCapacity();
+        ObjectSimplifier simplifier = createSimplifier();
+        String parametersKey = serializedParams.toString();
+        // Regions of a single tile have nothing to read ahead
+        int readAhead = Math.max(region.getWidth(), region.getHeight()) / region.getDownsample() > tileSize
+                ? pipelineSettings.getReadAhead() : 0;
+        try (MemoryBudget.Account account = memoryBudget.openAccount();
+                RegionPrefetcher prefetcher = readAhead == 0 ? null : new RegionPrefetcher(imageServer,
+                        pipelineSettings.getReadThreads(), account)) {
+            Iterator<TileTask> tasks = prefetcher == null ? generator : prefetcher.readAhead(generator, readAhead);
+            TilePipeline pipeline = new TilePipeline("serverkit-" + algoName);
+            pipeline.addStage("read", pipelineSettings.getReadThreads(), capacity, task -> {
+                        // Followers only wait here, before reserving memory: a leader past this stage never
+                        // waits for another flight, and the regions the follower's run read ahead are taken
+                        // back if the leader waits for memory, so runs cannot wait for each other
+                        SingleFlight.Flight<List<PathObject>> flight = tileFlights.join(
+                                new TileResultCache.Key(task.region, algoName, parametersKey));
+                        if (flight.leader()) {
+                            task.flight = flight.future();
+                            pendingFlights.add(task.flight);
+                            task.flight.whenComplete((result, exception) -> pendingFlights.remove(flight.future()));
+                        } else if ((task.objects = awaitFlight(flight)) != null) {
+                            task.shared = true;
+                            if (prefetcher != null)
+                                prefetcher.discard(task.region);
+                            return;
+                        }
+                        task.reservedBytes = MemoryBudget.estimateBytes(imageServer, task.region);
+                        if (prefetcher != null)
+                            prefetcher.reserve(task.region, task.reservedBytes);
+                        else
+                            account.acquire(task.reservedBytes);
+                        task.image = readRegion(imageServer, prefetcher, task, algoName);
+                    })
+                    .addStage("encode", pipelineSettings.getEncodeThreads(), capacity, task -> {
+                        if (task.shared)
+                            return;
+                        task.requestBody = encodeRequest(serializedParams, task, algoName);
+                        task.image = null;
+                    })
+                    .addStage("request", requestThreads, capacity, task -> {
+                        if (task.shared)
+                            return;
+                        if (adaptive)
+                            adaptiveController.acquire();
+                        try {
+                            task.response = sendProcessRequest(algoName, serializedParams, task, result -> {
+                                // Streamed results are decoded as they arrive, but only reach the sink
+                                // once the tile is complete: a tile failing half-way adds nothing
+                                long parseStart = System.nanoTime();
+                                List<PathObject> objects = decodeTileResult(result, task, algoName, simplifier, messages);
+                                metrics.recordSince(Stage.PARSE, parseStart);
+                                metrics.addObjects(objects.size());
+                                if (task.objects == null)
+                                    task.objects = new ArrayList<>();
+                                task.objects.addAll(objects);
+                            });
+                        } finally {
+                            if (adaptive)
+                                adaptiveController.release();
+                        }
+                        task.requestBody = null;
+                        account.release(task.reservedBytes);
+                    })
+                    .addStage("decode", pipelineSettings.getDecodeThreads(), capacity, task -> {
+                        if (task.shared)
+                            return;
+                        if (task.streamed) {
+                            // Already decoded as they were received
+                            if (task.objects == null)
+                                task.objects = new ArrayList<>();
+                            if (task.flight != null)
+                                task.flight.complete(task.objects);
+                            return;
+                        }
+                        long parseStart = System.nanoTime();
+                        task.objects = decodeResults(task.response, task, algoName, simplifier, messages);
+                        task.response = null;
+                        metrics.recordSince(Stage.PARSE, parseStart);
+                        metrics.addObjects(task.objects.size());
+                        if (task.flight != null)
+                            task.flight.complete(task.objects);
+                    })
+                    .run(tasks, sink);
+        } finally {
+            // Release the followers of the tiles that this run did not complete
+            for (CompletableFuture<List<PathObject>> flight : List.copyOf(pendingFlights)) {
+                flight.completeExceptionally(new CancellationException("Run of " + algoName + " ended"));
+            }
+        }
+    }
+
+    /**
+     * Read the pixels of a tile
+     *
+     * @param imageServer
+     * @param prefetcher if not null, the pixels are taken from it when they were read ahead
+     * @param task
+     * @param algoName
+     * @return
+     * @throws IOException
+     */
+    private ImagePlus readRegion(ImageServer<BufferedImage> imageServer, RegionPrefetcher prefetcher, TileTask task,
+            String algoName) throws IOException, InterruptedException {
         // [MW] This convertion to ImagePlus takes forever for images bigger than ~(40k, 40k)...
         // Related to Integer.MAX_VALUE; see: https://gist.github.com/petebankhead/eff37389be8623596ef89e0d1e5a36bd
-        ImagePlus img = IJTools.convertToImagePlus(imageServer, viewerRegion).getImage();
+        long readStart = System.nanoTime();
+        RegionReadEvent readEvent = new RegionReadEvent();
+        readEvent.begin();
+        ImagePlus img = prefetcher == null ? IJTools.convertToImagePlus(imageServer, task.region).getImage()
+                : prefetcher.read(task.region);
+        readEvent.end();
+        metrics.recordSince(Stage.READ_REGION, readStart);
+        if (readEvent.shouldCommit()) {
+            readEvent.setRegion(algoName, task.region, task.index);
+            readEvent.commit();
+        }
+        return img;
+    }
 
-        // ImagePlus to Base64-encoded string conversion:
-        byte[] serializedImage = new FileSaver(img).serialize();
-        String imgEncoded = Base64.getEncoder().encodeToString(serializedImage);
-        
-        // Add a parameter named "image" to the parameters stack
+    /**
+     * Build the body of a /process request from the parameters and the b64-encoded pixels of a tile
+     *
+     * @param serializedParams
+     * @param task
+     * @param algoName
+     * @return
+     */
+    private String encodeRequest(JsonArray serializedParams, TileTask task, String algoName) {
+        long encodeStart = System.nanoTime();
+        EncodeEvent encodeEvent = new EncodeEvent();
+        encodeEvent.begin();
+
+        // ImagePlus to Base64-encoded string conversion, unless the server already has the pixels
+        byte[] serializedImage = new FileSaver(task.image).serialize();
+        String requestBody;
+        if (imageHandles.isUsable()) {
+            task.imageHash = ImageHandles.hash(serializedImage);
+            if (imageHandles.isKnown(task.imageHash)) {
+                // Kept to upload the pixels if the server no longer knows the handle
+                task.imageBytes = serializedImage;
+                requestBody = buildRequestBody(serializedParams, null, Map.of("handle", task.imageHash));
+            } else {
+                requestBody = buildRequestBody(serializedParams, serializedImage, Map.of("content_hash", task.imageHash));
+            }
+        } else {
+            requestBody = buildRequestBody(serializedParams, serializedImage, Map.of());
+        }
+
+        encodeEvent.end();
+        metrics.recordSince(Stage.ENCODE, encodeStart);
+        adaptiveController.recordEncoded(getPixelCount(task.region), requestBody.length());
+        if (encodeEvent.shouldCommit()) {
+            encodeEvent.setRegion(algoName, task.region, task.index);
+            encodeEvent.imageBytes = serializedImage.length;
+            encodeEvent.bodyBytes = requestBody.length();
+            encodeEvent.commit();
+        }
+        return requestBody;
+    }
+
+    /**
+     * Add a parameter named "image" to the parameters stack
+     *
+     * @param serializedParams
+     * @param serializedImage the pixels to upload, or null if they are referenced by handle
+     * @param imageMeta
+     * @return the body of the /process request
+     */
+    private static String buildRequestBody(JsonArray serializedParams, byte[] serializedImage,
+            Map<String, Object> imageMeta) {
+        JsonArray tileParams = serializedParams.deepCopy();
         Map<String, Object> parametersMapImage = new LinkedHashMap<>();
-        Map<String, Object> paramMetaImage = new HashMap<>();
+        Map<String, Object> paramMetaImage = new HashMap<>(imageMeta);
         parametersMapImage.put("kind", "image");
         parametersMapImage.put("name", "image-qupath");
-        parametersMapImage.put("data", imgEncoded);
+        parametersMapImage.put("data", serializedImage == null ? null : Base64.getEncoder().encodeToString(serializedImage));
         parametersMapImage.put("meta", paramMetaImage);
-        JsonObject newJsonObject = gson.toJsonTree(parametersMapImage).getAsJsonObject();
-        serializedParams.add(newJsonObject);
+        tileParams.add(new GsonBuilder().serializeNulls().create().toJsonTree(parametersMapImage).getAsJsonObject());
+        return tileParams.toString();
+    }
+
+    /**
+     * Receives the results of a tile one by one, as the server streams them
+     */
+    private interface StreamedResultHandler {
+        void accept(JsonElement result) throws InterruptedException;
+    }
 
-        // Run the algo
+    /**
+     * Send a tile to the /process endpoint and parse the response. Requests rejected because
+     * the server is overloaded (HTTP 429 or 503) are sent again after a delay, and the
+     * latency and outcome of the request are reported to the {@link AdaptiveController}.
+     * <p>
+     * A server may answer with {@value #NDJSON_MEDIA_TYPE} instead of a single JSON array, each
+     * line being a result (or an array of results) sent as soon as it is ready. The results are
+     * then passed to the handler while the response is received, and the task is marked as
+     * streamed.
+     *
+     * @param algoName
+     * @param serializedParams to build the request again if the image handle is rejected
+     * @param task
+     * @param handler receives the results of a streamed response
+     * @return the serialized results, empty if they were streamed
+     * @throws IOException if the server did not process the request successfully
+     */
+    private JsonArray sendProcessRequest(String algoName, JsonArray serializedParams, TileTask task,
+            StreamedResultHandler handler)
+            throws IOException, URISyntaxException, ExecutionException, InterruptedException {
         URI algoRunURI = new URI(null, "/" + algoName + "/process", null);
-        HttpResponse<String> runResponse = this.post(algoRunURI.toASCIIString(), serializedParams.toString());
+        MeteredExchange exchange = new MeteredExchange(metrics);
+        ProcessRequestEvent processEvent = new ProcessRequestEvent();
+        processEvent.begin();
+        HttpResponse<InputStream> runResponse = null;
+        // Whether the outcome of the last request was already reported to the adaptive controller
+        boolean recorded = false;
+        try {
+            long requestStart = System.nanoTime();
+            runResponse = this.post(algoRunURI.toASCIIString(), task.requestBody, exchange);
+            for (int retry = 0; retry < MAX_OVERLOAD_RETRIES && isOverloaded(runResponse); retry++) {
+                long delayMs = runResponse.headers().firstValueAsLong("Retry-After").orElse(0) * 1000;
+                try (InputStream ignored = runResponse.body()) {
+                    adaptiveController.recordFailure(runResponse.statusCode(), task.requestBody.length());
+                }
+                delayMs = Math.max(delayMs, RETRY_DELAY_MS << retry);
+                logger.debug("Server overloaded (HTTP {}), sending tile {} again in {} ms",
+                        runResponse.statusCode(), task.index, delayMs);
+                Thread.sleep(delayMs);
+                requestStart = System.nanoTime();
+                runResponse = this.post(algoRunURI.toASCIIString(), task.requestBody, exchange);
+            }
+            if (task.imageBytes != null && ImageHandles.isRejected(runResponse.statusCode())) {
+                // The server does not know the handle (anymore): upload the pixels
+                logger.debug("Image handle {} rejected (HTTP {}), uploading the image", task.imageHash, runResponse.statusCode());
+                try (InputStream ignored = runResponse.body()) {
+                    imageHandles.forget(task.imageHash);
+                }
+                task.requestBody = buildRequestBody(serializedParams, task.imageBytes,
+                        Map.of("content_hash", task.imageHash));
+                task.imageBytes = null;
+                runResponse = this.post(algoRunURI.toASCIIString(), task.requestBody, exchange);
+            }
+            if (task.imageHash != null && task.imageBytes == null && runResponse.statusCode() == 201) {
+                // The answer to an upload tells whether the server stored the image
+                boolean stored = runResponse.headers().firstValue(ImageHandles.HANDLE_HEADER)
+                        .filter(task.imageHash::equals).isPresent();
+                imageHandles.setSupported(stored);
+                if (stored)
+                    imageHandles.acknowledge(task.imageHash);
+            }
+            task.imageBytes = null;
 
-        if (runResponse.statusCode() != 201) {
-            logHttpError(runResponse, "Processing with " + algoName + " failed");
-            return;
+            // Decompress and parse the response body while it is downloaded
+            if (runResponse.statusCode() != 201) {
+                recorded = true;
+                adaptiveController.recordFailure(runResponse.statusCode(), task.requestBody.length());
+                logHttpError(runResponse, "Processing with " + algoName + " failed");
+                throw new IOException("Processing with " + algoName + " failed (HTTP " + runResponse.statusCode() + ")");
+            }
+            // Time spent decoding and handing over the streamed results is not server latency
+            long[] handlerNanos = new long[1];
+            JsonArray serializedResults;
+            try (InputStream body = openResponseBody(runResponse)) {
+                if (runResponse.headers().firstValue("Content-Type").filter(t -> t.startsWith(NDJSON_MEDIA_TYPE)).isPresent()) {
+                    readStreamedResults(body, result -> {
+                        long handlerStart = System.nanoTime();
+                        handler.accept(result);
+                        handlerNanos[0] += System.nanoTime() - handlerStart;
+                    });
+                    task.streamed = true;
+                    serializedResults = new JsonArray();
+                } else {
+                    serializedResults = JsonParser.parseReader(new InputStreamReader(body, StandardCharsets.UTF_8))
+                            .getAsJsonArray();
+                }
+            }
+            recorded = true;
+            adaptiveController.recordSuccess(getPixelCount(task.region),
+                    System.nanoTime() - requestStart - handlerNanos[0], task.fullSize);
+            return serializedResults;
+        } catch (IOException | ExecutionException | RuntimeException e) {
+            // E.g. a lost connection, or an error line in the middle of a streamed response
+            if (!recorded)
+                adaptiveController.recordFailure(500, task.requestBody.length());
+            throw e;
+        } finally {
+            processEvent.end();
+            if (processEvent.shouldCommit()) {
+                processEvent.setRegion(algoName, task.region, task.index);
+                processEvent.bytesSent = exchange.getBytesSent();
+                processEvent.bytesReceived = exchange.getBytesReceived();
+                processEvent.statusCode = runResponse == null ? -1 : runResponse.statusCode();
+                processEvent.commit();
+            }
+        }
+    }
+
+    /**
+     * Read a {@value #NDJSON_MEDIA_TYPE} response line by line, so that only the current line
+     * is held in memory. Lines without a "kind" (e.g. progress or end-of-tile markers) are skipped.
+     *
+     * @param body the decompressed response body
+     * @param handler
+     * @throws IOException if the server reports an error in the stream
+     * @throws InterruptedException
+     */
+    private static void readStreamedResults(InputStream body, StreamedResultHandler handler)
+            throws IOException, InterruptedException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isBlank())
+                continue;
+            JsonElement element = JsonParser.parseString(line);
+            List<JsonElement> results = element.isJsonArray() ? element.getAsJsonArray().asList() : List.of(element);
+            for (JsonElement result : results) {
+                JsonObject object = result.getAsJsonObject();
+                if (object.has("error"))
+                    throw new IOException("The server failed while streaming the results: " + object.get("error"));
+                if (object.has("kind"))
+                    handler.accept(result);
+            }
         }
+    }
 
-        // Process the response body
-        JsonArray serializedResults = JsonParser.parseString(runResponse.body()).getAsJsonArray();
+    private static boolean isOverloaded(HttpResponse<?> response) {
+        return response.statusCode() == 429 || response.statusCode() == 503;
+    }
 
+    /**
+     * @param region
+     * @return the number of pixels of a region at its downsample
+     */
+    private static long getPixelCount(RegionRequest region) {
+        return (long) (region.getWidth() / region.getDownsample()) * (long) (region.getHeight() / region.getDownsample());
+    }
+
+    /**
+     * Decode the objects of all the results returned for a tile
+     *
+     * @param serializedResults
+     * @param task
+     * @param algoName
+     * @param simplifier applied once the measurements and classes are assigned, as they are
+     *                   matched to the objects by index
+     * @param messages receives the notifications and the results that cannot be handled
+     * @return
+     */
+    private static List<PathObject> decodeResults(JsonArray serializedResults, TileTask task, String algoName,
+            ObjectSimplifier simplifier, Consumer<ServerMessage> messages) {
+        List<PathObject> detections = new ArrayList<>();
         for (JsonElement element : serializedResults) {
+            detections.addAll(decodeTileResult(element, task, algoName, simplifier, messages));
+        }
+        return detections;
+    }
 
-            JsonObject meta = element.getAsJsonObject().get("meta").getAsJsonObject();
-            String kind = element.getAsJsonObject().get("kind").getAsString();
-            
-            Gson gsonagain = GsonTools.getInstance();
-            AffineTransform transform = new AffineTransform();
-            transform.translate(viewerRegion.getMinX(), viewerRegion.getMinY());
-            transform.scale(viewerRegion.getDownsample(), viewerRegion.getDownsample());
-            ImagePlane plane = viewerRegion.getImagePlane();
-            List<PathObject> detections = new ArrayList<>();
-
-            // Handle segmentation results returned as `features` (polygons)
-            JsonArray encodedData;
-            switch (kind) {
-                // Types int, float, bool, str, etc. area also ignored.
-                case "image":
-                    Dialogs.showErrorMessage("Unhandled algo type", "Algorithms that return image data aren't supported.");
-                    break;
-                case "tracks":
-                    Dialogs.showErrorMessage("Unhandled algo type", "Tracking algorithms aren't supported.");
-                    break;
-                case "paths":
-                    Dialogs.showErrorMessage("Unhandled algo type", "Paths algorithms aren't supported.");
-                    break;                
-                case "mask":
-                    encodedData = element.getAsJsonObject().get("data").getAsJsonArray();
-                    // Decode shapely features as polygons
-                    List<PathObject> pathObjectsLabels = encodedData.asList().stream()
-                            .map(e -> parsePathObject(gsonagain, e))
-                            .filter(Objects::nonNull)
-                            .toList();
-
-                    for (PathObject pathObject : pathObjectsLabels) {
-                        if (!transform.isIdentity()) {
-                            pathObject = PathObjectTools.transformObject(pathObject, transform, true);
-                        }
-                        if (plane != null && !Objects.equals(plane, pathObject.getROI().getImagePlane()))
-                            pathObject = PathObjectTools.updatePlane(pathObject, plane, true, false);
-                        detections.add(pathObject);
-                    }
-                    break;
-                // case "instance_mask":
-                //     encodedData = element.getAsJsonObject().get("data").getAsJsonArray();
-                //     List<PathObject> pathObjectsInstances = encodedData.asList().stream()
-                //             .map(e -> gson.fromJson(e.getAsJsonObject(), PathObject.class))
-                //             .filter(Objects::nonNull)
-                //             .toList();
-
-                //     for (PathObject pathObject : pathObjectsInstances) {
-                //         if (!transform.isIdentity()) {
-                //             pathObject = PathObjectTools.transformObject(pathObject, transform, true);
-                //         }
-                //         if (plane != null && !Objects.equals(plane, pathObject.getROI().getImagePlane()))
-                //             pathObject = PathObjectTools.updatePlane(pathObject, plane, true, false);
-                //         detections.add(pathObject);
-                //     }
-                //     break;
-                case "points":
-                    encodedData = element.getAsJsonObject().get("data").getAsJsonArray();
-                    // Decode shapely features as points
-                    for (JsonElement pointElement : encodedData) {
-                        List<Point2> pointDetections = new ArrayList<>();
-                        JsonObject jsonObject = pointElement.getAsJsonObject();
-                        JsonObject geometry = jsonObject.getAsJsonObject("geometry");
-                        JsonArray coordinates = geometry.getAsJsonArray("coordinates");
-                        double x = coordinates.get(0).getAsJsonArray().get(0).getAsDouble();
-                        double y = coordinates.get(0).getAsJsonArray().get(1).getAsDouble();
-                        Point2 point = new Point2(x, y);
-                        pointDetections.add(point);
-                        ROI pointsROI = ROIs.createPointsROI(pointDetections, plane);
-                        PathObject pathObjectPoints = PathObjects.createDetectionObject(pointsROI);
-
-                        if (!transform.isIdentity()) {
-                            pathObjectPoints = PathObjectTools.transformObject(pathObjectPoints, transform, true);
-                        }
-                        if (plane != null && !Objects.equals(plane, pathObjectPoints.getROI().getImagePlane()))
-                            pathObjectPoints = PathObjectTools.updatePlane(pathObjectPoints, plane, true, false);
+    /**
+     * Decode the objects of a single result returned for a tile
+     *
+     * @param element
+     * @param task
+     * @param algoName
+     * @param simplifier
+     * @param messages
+     * @return
+     */
+    private static List<PathObject> decodeTileResult(JsonElement element, TileTask task, String algoName,
+            ObjectSimplifier simplifier, Consumer<ServerMessage> messages) {
+        DecodeEvent decodeEvent = new DecodeEvent();
+        decodeEvent.begin();
+        List<PathObject> decoded = decodeResult(element, task.region, messages);
+        decodeEvent.end();
+        if (decodeEvent.shouldCommit()) {
+            decodeEvent.setRegion(algoName, task.region, task.index);
+            decodeEvent.kind = element.getAsJsonObject().get("kind").getAsString();
+            decodeEvent.objectCount = decoded.size();
+            decodeEvent.commit();
+        }
+        if (!simplifier.isEnabled())
+            return decoded;
+        List<PathObject> detections = new ArrayList<>(decoded.size());
+        for (PathObject pathObject : decoded) {
+            PathObject simplified = simplifier.simplify(pathObject);
+            if (simplified != null)
+                detections.add(simplified);
+        }
+        return detections;
+    }
 
-                        detections.add(pathObjectPoints);
-                    }
-                    break;
-                case "boxes":
-                    // Handled just like labels
-                    encodedData = element.getAsJsonObject().get("data").getAsJsonArray();
-                    List<PathObject> pathObjectsBoxes = encodedData.asList().stream()
-                            .map(e -> gson.fromJson(e.getAsJsonObject(), PathObject.class))
-                            .filter(Objects::nonNull)
-                            .toList();
-
-                    for (PathObject pathObject : pathObjectsBoxes) {
-                        if (!transform.isIdentity()) {
-                            pathObject = PathObjectTools.transformObject(pathObject, transform, true);
-                        }
-                        if (plane != null && !Objects.equals(plane, pathObject.getROI().getImagePlane()))
-                            pathObject = PathObjectTools.updatePlane(pathObject, plane, true, false);
-                        detections.add(pathObject);
+    private ObjectSimplifier createSimplifier() {
+        return new ObjectSimplifier(pipelineSettings.getSimplifyTolerance(), pipelineSettings.getMinObjectArea());
+    }
+
+    /**
+     * Decode a single result returned by the server into objects in the image coordinates
+     *
+     * @param element
+     * @param viewerRegion the region that was sent to the server
+     * @param messages receives the notifications and the results that cannot be handled
+     * @return the decoded objects, possibly empty
+     */
+    private static List<PathObject> decodeResult(JsonElement element, RegionRequest viewerRegion,
+            Consumer<ServerMessage> messages) {
+        JsonObject meta = element.getAsJsonObject().get("meta").getAsJsonObject();
+        String kind = element.getAsJsonObject().get("kind").getAsString();
+
+        Gson gson = new Gson();
+        Gson gsonagain = GsonTools.getInstance();
+        AffineTransform transform = new AffineTransform();
+        transform.translate(viewerRegion.getMinX(), viewerRegion.getMinY());
+        transform.scale(viewerRegion.getDownsample(), viewerRegion.getDownsample());
+        ImagePlane plane = viewerRegion.getImagePlane();
+        List<PathObject> detections = new ArrayList<>();
+
+        // Handle segmentation results returned as `features` (polygons)
+        JsonArray encodedData;
+        switch (kind) {
+            // Types int, float, bool, str, etc. area also ignored.
+            case "image":
+                messages.accept(new ServerMessage(ServerMessage.Level.ERROR, "Unhandled algo type",
+                        "Algorithms that return image data aren't supported."));
+                break;
+            case "tracks":
+                messages.accept(new ServerMessage(ServerMessage.Level.ERROR, "Unhandled algo type",
+                        "Tracking algorithms aren't supported."));
+                break;
+            case "paths":
+                messages.accept(new ServerMessage(ServerMessage.Level.ERROR, "Unhandled algo type",
+                        "Paths algorithms aren't supported."));
+                break;
+            case "mask":
+                encodedData = element.getAsJsonObject().get("data").getAsJsonArray();
+                // Decode shapely features as polygons
+                List<PathObject> pathObjectsLabels = encodedData.asList().stream()
+                        .map(e -> parsePathObject(gsonagain, e))
+                        .filter(Objects::nonNull)
+                        .toList();
+
+                for (PathObject pathObject : pathObjectsLabels) {
+                    if (!transform.isIdentity()) {
+                        pathObject = PathObjectTools.transformObject(pathObject, transform, true);
                     }
-                    break;
-                case "vectors":
-                    // Handled just like labels
-                    encodedData = element.getAsJsonObject().get("data").getAsJsonArray();
-                    List<PathObject> pathObjectsVectors = encodedData.asList().stream()
-                            .map(e -> gson.fromJson(e.getAsJsonObject(), PathObject.class))
-                            .filter(Objects::nonNull)
-                            .toList();
-
-                    for (PathObject pathObject : pathObjectsVectors) {
-                        if (!transform.isIdentity()) {
-                            pathObject = PathObjectTools.transformObject(pathObject, transform, true);
-                        }
-                        if (plane != null && !Objects.equals(plane, pathObject.getROI().getImagePlane()))
-                            pathObject = PathObjectTools.updatePlane(pathObject, plane, true, false);
-                        detections.add(pathObject);
+                    if (plane != null && !Objects.equals(plane, pathObject.getROI().getImagePlane()))
+                        pathObject = PathObjectTools.updatePlane(pathObject, plane, true, false);
+                    detections.add(pathObject);
+                }
+                break;
+            // case "instance_mask":
+            //     encodedData = element.getAsJsonObject().get("data").getAsJsonArray();
+            //     List<PathObject> pathObjectsInstances = encodedData.asList().stream()
+            //             .map(e -> gson.fromJson(e.getAsJsonObject(), PathObject.class))
+            //             .filter(Objects::nonNull)
+            //             .toList();
+
+            //     for (PathObject pathObject : pathObjectsInstances) {
+            //         if (!transform.isIdentity()) {
+            //             pathObject = PathObjectTools.transformObject(pathObject, transform, true);
+            //         }
+            //         if (plane != null && !Objects.equals(plane, pathObject.getROI().getImagePlane()))
+            //             pathObject = PathObjectTools.updatePlane(pathObject, plane, true, false);
+            //         detections.add(pathObject);
+            //     }
+            //     break;
+            case "points":
+                encodedData = element.getAsJsonObject().get("data").getAsJsonArray();
+                // Decode shapely features as points
+                for (JsonElement pointElement : encodedData) {
+                    List<Point2> pointDetections = new ArrayList<>();
+                    JsonObject jsonObject = pointElement.getAsJsonObject();
+                    JsonObject geometry = jsonObject.getAsJsonObject("geometry");
+                    JsonArray coordinates = geometry.getAsJsonArray("coordinates");
+                    double x = coordinates.get(0).getAsJsonArray().get(0).getAsDouble();
+                    double y = coordinates.get(0).getAsJsonArray().get(1).getAsDouble();
+                    Point2 point = new Point2(x, y);
+                    pointDetections.add(point);
+                    ROI pointsROI = ROIs.createPointsROI(pointDetections, plane);
+                    PathObject pathObjectPoints = PathObjects.createDetectionObject(pointsROI);
+
+                    if (!transform.isIdentity()) {
+                        pathObjectPoints = PathObjectTools.transformObject(pathObjectPoints, transform, true);
                     }
-                    break;
-                case "notification":
-                    String notificationText = element.getAsJsonObject().get("data").getAsString();
-                    String notificationLevel;
-                    if (meta.has("level")) {
-                        notificationLevel = meta.getAsJsonObject().get("level").getAsString();
-                    } else {
-                        notificationLevel = "info";
+                    if (plane != null && !Objects.equals(plane, pathObjectPoints.getROI().getImagePlane()))
+                        pathObjectPoints = PathObjectTools.updatePlane(pathObjectPoints, plane, true, false);
+
+                    detections.add(pathObjectPoints);
+                }
+                break;
+            case "boxes":
+                // Handled just like labels
+                encodedData = element.getAsJsonObject().get("data").getAsJsonArray();
+                List<PathObject> pathObjectsBoxes = encodedData.asList().stream()
+                        .map(e -> gson.fromJson(e.getAsJsonObject(), PathObject.class))
+                        .filter(Objects::nonNull)
+                        .toList();
+
+                for (PathObject pathObject : pathObjectsBoxes) {
+                    if (!transform.isIdentity()) {
+                        pathObject = PathObjectTools.transformObject(pathObject, transform, true);
                     }
-                    if (notificationLevel.equals("error")) {
-                        Dialogs.showErrorNotification("Server notification", notificationText);
-                    } else if (notificationLevel.equals("warning")) {
-                        Dialogs.showWarningNotification("Server notification", notificationText);
-                    } else {
-                        Dialogs.showInfoNotification("Server notification", notificationText);
+                    if (plane != null && !Objects.equals(plane, pathObject.getROI().getImagePlane()))
+                        pathObject = PathObjectTools.updatePlane(pathObject, plane, true, false);
+                    detections.add(pathObject);
+                }
+                break;
+            case "vectors":
+                // Handled just like labels
+                encodedData = element.getAsJsonObject().get("data").getAsJsonArray();
+                List<PathObject> pathObjectsVectors = encodedData.asList().stream()
+                        .map(e -> gson.fromJson(e.getAsJsonObject(), PathObject.class))
+                        .filter(Objects::nonNull)
+                        .toList();
+
+                for (PathObject pathObject : pathObjectsVectors) {
+                    if (!transform.isIdentity()) {
+                        pathObject = PathObjectTools.transformObject(pathObject, transform, true);
                     }
-            }
+                    if (plane != null && !Objects.equals(plane, pathObject.getROI().getImagePlane()))
+                        pathObject = PathObjectTools.updatePlane(pathObject, plane, true, false);
+                    detections.add(pathObject);
+                }
+                break;
+            case "notification":
+                String notificationText = element.getAsJsonObject().get("data").getAsString();
+                String notificationLevel;
+                if (meta.has("level")) {
+                    notificationLevel = meta.getAsJsonObject().get("level").getAsString();
+                } else {
+                    notificationLevel = "info";
+                }
+                ServerMessage.Level level;
+                if (notificationLevel.equals("error")) {
+                    level = ServerMessage.Level.ERROR;
+                } else if (notificationLevel.equals("warning")) {
+                    level = ServerMessage.Level.WARNING;
+                } else {
+                    level = ServerMessage.Level.INFO;
+                }
+                messages.accept(new ServerMessage(level, "Server notification", notificationText));
+        }
 
-            // Add decoded `measurements` and classification
-            if (meta.has("features")) {
-                JsonObject encodedFeatures = meta.getAsJsonObject().get("features").getAsJsonObject();
-                for (int idx = 0; idx < detections.size(); idx++) {
-                    PathObject pathObject = detections.get(idx);
-                    for (String key : encodedFeatures.keySet()) {
-                        if (key.equals("class")) {
-                            pathObject.setPathClass(PathClass.getInstance(encodedFeatures.get(key).getAsJsonArray().get(idx).getAsString()));
-                        } else {
-                            try {
-                                String encodedFeature = encodedFeatures.get(key).getAsString();
-                                List<Float> measurements = decodeBase64TiffArray(encodedFeature);
-                                if (idx < measurements.size()) {
-                                    pathObject.getMeasurements().put(key, measurements.get(idx));
-                                }
-                            } catch (Exception e) {
-                                throw new RuntimeException(e);
+        // Add decoded `measurements` and classification
+        if (meta.has("features")) {
+            JsonObject encodedFeatures = meta.getAsJsonObject().get("features").getAsJsonObject();
+            for (int idx = 0; idx < detections.size(); idx++) {
+                PathObject pathObject = detections.get(idx);
+                for (String key : encodedFeatures.keySet()) {
+                    if (key.equals("class")) {
+                        pathObject.setPathClass(PathClass.getInstance(encodedFeatures.get(key).getAsJsonArray().get(idx).getAsString()));
+                    } else {
+                        try {
+                            String encodedFeature = encodedFeatures.get(key).getAsString();
+                            List<Float> measurements = decodeBase64TiffArray(encodedFeature);
+                            if (idx < measurements.size()) {
+                                pathObject.getMeasurements().put(key, measurements.get(idx));
                             }
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
                         }
                     }
-
                 }
-            }
 
-            // Display the results
-            this.displayResult(qupath, selectedObject, detections);
+            }
         }
+        return detections;
     }
 
     /**
@@ -545,30 +1413,16 @@ public class Client {
     }
 
     /**
-     * Add a list of objects into the image's hierarchy below their parent object
+     * Get the region of a ROI at full resolution, on the plane of the ROI
      *
-     * @param qupath
-     * @param parentObject
-     * @param resultObjects
+     * @param imageServer
+     * @param roi
+     * @return
      */
-    private void displayResult(QuPathGUI qupath, PathObject parentObject, List<PathObject> resultObjects) {
-        if (resultObjects != null) {
-            PathObjectHierarchy hierarchy = qupath.getViewer().getImageData().getHierarchy();
-            for (PathObject obj : resultObjects) {
-                if (parentObject != null) {
-                    hierarchy.addObjectBelowParent(parentObject, PathObjects.createDetectionObject(obj.getROI(),
-                            obj.getPathClass(), obj.getMeasurementList()), false);
-                }
-                hierarchy.getSelectionModel().setSelectedObject(obj, true);
-            }
-            // Update the hierarchy
-            hierarchy.fireHierarchyChangedEvent(hierarchy.getRootObject());
-
-            // Update the available classification classes
-            Platform.runLater(() -> {
-                updateClassifications(qupath, resultObjects);
-            });
-        }
+    public static RegionRequest getRegionRequest(ImageServer<BufferedImage> imageServer, ROI roi) {
+        RegionRequest region = RegionRequest.createInstance(imageServer.getPath(),
+                imageServer.getDownsampleForResolution(0), roi);
+        return region.intersect2D(0, 0, imageServer.getWidth(), imageServer.getHeight());
     }
 
     /**
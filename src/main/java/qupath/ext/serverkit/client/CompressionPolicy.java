@@ -0,0 +1,120 @@
+package qupath.ext.serverkit.client;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Objects;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides whether request bodies should be compressed.
+ * <p>
+ * Request bodies are only compressed when the server has advertised the coding
+ * in an {@code Accept-Encoding} response header. Once the upload bandwidth, the
+ * compression throughput and the compression ratio have been measured,
+ * compression is skipped when compressing would take longer than the transfer
+ * time it saves (e.g. on a fast local network); it is then probed again every
+ * {@link #PROBE_INTERVAL} requests in case the conditions changed.
+ */
+class CompressionPolicy {
+    private final static Logger logger = LoggerFactory.getLogger(CompressionPolicy.class);
+
+    // Bodies smaller than this are always sent uncompressed
+    static final long MIN_COMPRESS_BYTES = 8 * 1024;
+
+    // Number of uncompressed requests after which compression is tried again
+    static final int PROBE_INTERVAL = 10;
+
+    // Weight of the latest measurement in the moving averages
+    private static final double ALPHA = 0.3;
+
+    private boolean enabled = true;
+    private String requestEncoding;
+    private double uploadBytesPerSecond = Double.NaN;
+    private double compressBytesPerSecond = Double.NaN;
+    private double compressionRatio = Double.NaN;
+    private int requestsSinceProbe;
+
+    synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Update the content codings accepted by the server for request bodies
+     *
+     * @param acceptEncoding value of an Accept-Encoding response header, or null
+     */
+    synchronized void setServerAcceptEncoding(String acceptEncoding) {
+        String encoding = null;
+        if (acceptEncoding != null) {
+            String[] codings = Arrays.stream(acceptEncoding.split(","))
+                    .map(s -> s.split(";")[0].trim().toLowerCase(Locale.ROOT))
+                    .toArray(String[]::new);
+            if (Arrays.asList(codings).contains(ContentEncodings.GZIP))
+                encoding = ContentEncodings.GZIP;
+            else if (Arrays.asList(codings).contains(ContentEncodings.DEFLATE))
+                encoding = ContentEncodings.DEFLATE;
+        }
+        if (!Objects.equals(encoding, requestEncoding))
+            logger.debug("Server accepts request bodies encoded with {}", encoding);
+        requestEncoding = encoding;
+    }
+
+    /**
+     * Stop compressing request bodies, e.g. after the server rejected one
+     */
+    synchronized void rejectRequestEncoding() {
+        logger.warn("Server rejected a {}-encoded request, sending uncompressed requests from now on", requestEncoding);
+        requestEncoding = null;
+    }
+
+    /**
+     * @param rawBytes size of the uncompressed body
+     * @return the coding to apply to a request body, or null to send it uncompressed
+     */
+    synchronized String chooseRequestEncoding(long rawBytes) {
+        if (!enabled || requestEncoding == null || rawBytes < MIN_COMPRESS_BYTES)
+            return null;
+        if (Double.isNaN(uploadBytesPerSecond) || Double.isNaN(compressBytesPerSecond))
+            return requestEncoding;
+        double uncompressedSeconds = rawBytes / uploadBytesPerSecond;
+        double compressedSeconds = rawBytes / compressBytesPerSecond
+                + rawBytes * compressionRatio / uploadBytesPerSecond;
+        if (compressedSeconds < uncompressedSeconds)
+            return requestEncoding;
+        if (++requestsSinceProbe >= PROBE_INTERVAL) {
+            requestsSinceProbe = 0;
+            return requestEncoding;
+        }
+        return null;
+    }
+
+    /**
+     * Update the estimates from a completed upload
+     *
+     * @param rawBytes size of the uncompressed body
+     * @param wireBytes number of bytes actually sent
+     * @param uploadNanos time between the start of the request and the end of the upload
+     * @param compressNanos time spent compressing the body, 0 if it was not compressed
+     */
+    synchronized void recordUpload(long rawBytes, long wireBytes, long uploadNanos, long compressNanos) {
+        if (rawBytes < MIN_COMPRESS_BYTES || uploadNanos <= 0)
+            return;
+        long transferNanos = uploadNanos - compressNanos;
+        if (transferNanos > 0)
+            uploadBytesPerSecond = average(uploadBytesPerSecond, wireBytes * 1e9 / transferNanos);
+        if (compressNanos > 0) {
+            compressBytesPerSecond = average(compressBytesPerSecond, rawBytes * 1e9 / compressNanos);
+            compressionRatio = average(compressionRatio, wireBytes / (double) rawBytes);
+        }
+    }
+
+    private static double average(double current, double value) {
+        return Double.isNaN(current) ? value : (1 - ALPHA) * current + ALPHA * value;
+    }
+}
@@ -0,0 +1,155 @@
+package qupath.ext.serverkit.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Streaming implementations of the HTTP content codings supported by the client
+ * (gzip and deflate)
+ */
+class ContentEncodings {
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    // Value of the Accept-Encoding header sent with every request
+    static final String ACCEPT_ENCODING = GZIP + ", " + DEFLATE;
+
+    private ContentEncodings() {
+    }
+
+    /**
+     * Wrap a response body in a decompressing stream according to its Content-Encoding
+     *
+     * @param body
+     * @param contentEncoding value of the Content-Encoding header, or null
+     * @return
+     * @throws IOException if the encoding is not supported
+     */
+    static InputStream decode(InputStream body, String contentEncoding) throws IOException {
+        if (contentEncoding == null)
+            return body;
+        switch (contentEncoding.trim().toLowerCase(Locale.ROOT)) {
+            case "":
+            case "identity":
+                return body;
+            case GZIP:
+            case "x-gzip":
+                return new GZIPInputStream(body, 64 * 1024);
+            case DEFLATE:
+                return new InflaterInputStream(body);
+            default:
+                throw new IOException("Unsupported response Content-Encoding: " + contentEncoding);
+        }
+    }
+
+    /**
+     * Wrap an uncompressed request body in a stream producing its compressed form. The native
+     * memory of the compressor is freed when the stream is closed, even if it was not read to
+     * the end (e.g. when the upload is aborted).
+     *
+     * @param raw
+     * @param encoding either {@link #GZIP} or {@link #DEFLATE}
+     * @return
+     */
+    static InputStream encode(InputStream raw, String encoding) {
+        if (DEFLATE.equals(encoding)) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            return endOnClose(new DeflaterInputStream(raw, deflater), deflater);
+        }
+        if (!GZIP.equals(encoding))
+            throw new IllegalArgumentException("Unsupported request Content-Encoding: " + encoding);
+
+        // gzip member = fixed header + raw deflate data + CRC32 and size trailer
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        byte[] header = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+        List<Supplier<InputStream>> parts = List.of(
+                () -> new ByteArrayInputStream(header),
+                () -> new DeflaterInputStream(new CheckedInputStream(raw, crc), deflater),
+                () -> {
+                    long crcValue = crc.getValue();
+                    long size = deflater.getBytesRead();
+                    deflater.end();
+                    byte[] trailer = new byte[8];
+                    for (int i = 0; i < 4; i++) {
+                        trailer[i] = (byte) (crcValue >> (8 * i));
+                        trailer[4 + i] = (byte) (size >> (8 * i));
+                    }
+                    return new ByteArrayInputStream(trailer);
+                });
+        Iterator<Supplier<InputStream>> iterator = parts.iterator();
+        return endOnClose(new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                return iterator.next().get();
+            }
+        }), deflater);
+    }
+
+    private static InputStream endOnClose(InputStream stream, Deflater deflater) {
+        return new FilterInputStream(stream) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // Ending twice (after the gzip trailer) is harmless
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Stream that accumulates the time spent in its reads, used to measure how long
+     * compressing a request body takes while it is being uploaded
+     */
+    static class TimedInputStream extends FilterInputStream {
+
+        private volatile long nanos;
+
+        TimedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = super.read();
+            nanos += System.nanoTime() - start;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            int n = super.read(b, off, len);
+            nanos += System.nanoTime() - start;
+            return n;
+        }
+
+        long getNanos() {
+            return nanos;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package qupath.ext.serverkit.client;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Content hashes of the images stored by the server, so that the same pixels are uploaded
+ * once and then referenced by handle, e.g. while tuning the parameters of an algorithm.
+ * <p>
+ * An image is first uploaded in full with its hash in the {@code content_hash} meta field.
+ * A server supporting handles keeps it and answers with the hash in the
+ * {@value #HANDLE_HEADER} header. Later requests for the same pixels send the hash in the
+ * {@code handle} meta field instead of the data. If the server no longer knows the handle
+ * (e.g. after a restart), it rejects the request (HTTP 404, 410 or 422) and the image is
+ * uploaded in full again. A server that answers an upload without the header does not
+ * support handles: it is never sent a handle, and the images are not hashed anymore.
+ */
+class ImageHandles {
+
+    static final String HANDLE_HEADER = "X-Image-Handle";
+
+    // Maximum number of handles remembered, the least recently used are forgotten first
+    static final int MAX_HANDLES = 1024;
+
+    // Statuses of a request rejected because the server does not know its handle
+    private static final Set<Integer> REJECTED_STATUS_CODES = Set.of(404, 410, 422);
+
+    private final Set<String> known = Collections.newSetFromMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_HANDLES;
+        }
+    });
+    private boolean enabled = true;
+    // Whether the server supports handles, null until it answers an upload
+    private Boolean supported;
+
+    synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled)
+            known.clear();
+    }
+
+    /**
+     * @return true if the images should be hashed, handles being enabled and not known to be
+     *         unsupported by the server
+     */
+    synchronized boolean isUsable() {
+        return enabled && !Boolean.FALSE.equals(supported);
+    }
+
+    /**
+     * Record whether the server supports handles, from its answer to an upload with a content hash
+     *
+     * @param supported
+     */
+    synchronized void setSupported(boolean supported) {
+        this.supported = supported;
+    }
+
+    /**
+     * @param statusCode the status of a request sent with a handle
+     * @return true if the server rejected the handle, and the image should be uploaded
+     */
+    static boolean isRejected(int statusCode) {
+        return REJECTED_STATUS_CODES.contains(statusCode);
+    }
+
+    /**
+     * @param hash
+     * @return true if the server acknowledged storing the image with this hash
+     */
+    synchronized boolean isKnown(String hash) {
+        return enabled && known.contains(hash);
+    }
+
+    synchronized void acknowledge(String hash) {
+        if (enabled)
+            known.add(hash);
+    }
+
+    synchronized void forget(String hash) {
+        known.remove(hash);
+    }
+
+    /**
+     * Forget all the handles and whether they are supported, e.g. when connecting to another server
+     */
+    synchronized void clear() {
+        known.clear();
+        supported = null;
+    }
+
+    /**
+     * @param bytes
+     * @return the hex-encoded SHA-256 of the bytes
+     */
+    static String hash(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package qupath.ext.serverkit.client;
+
+import java.awt.image.BufferedImage;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Admission control for the memory used by the requests in flight, shared by all runs.
+ * <p>
+ * While a tile is being sent, its pixels exist at the same time as an {@code ImagePlus},
+ * a serialized TIFF {@code byte[]}, a Base64 {@code String} and the JSON request body.
+ * Each tile reserves an estimate of this footprint before its pixels are read and
+ * releases it once the request is sent; tiles that would exceed the budget wait
+ * until enough memory is released by the other runs.
+ * <p>
+ * Memory reserved only to read regions ahead is taken back from all the runs as soon as a
+ * tile has to wait, so that a run never waits for memory held by a run that is itself
+ * waiting for it (e.g. for the results of a tile that both runs need).
+ */
+public class MemoryBudget {
+    private final static Logger logger = LoggerFactory.getLogger(MemoryBudget.class);
+
+    // Copies of the pixels alive at once: BufferedImage + ImagePlus, TIFF bytes,
+    // then the Base64 string, the JSON body and its UTF-8 bytes (each 4/3 of the pixels)
+    private static final double FOOTPRINT_FACTOR = 2 + 1 + 3 * 4.0 / 3.0;
+
+    private static final MemoryBudget instance = new MemoryBudget(Runtime.getRuntime().maxMemory() / 4);
+
+    private long maxBytes;
+    private long inFlightBytes;
+    private int waiting;
+
+    private final Set<Account> accounts = ConcurrentHashMap.newKeySet();
+
+    private MemoryBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static MemoryBudget getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return the maximum number of bytes that the requests in flight may use, by default
+     *         a quarter of the maximum heap size
+     */
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("Memory budget must be positive, not " + maxBytes);
+        this.maxBytes = maxBytes;
+        notifyAll();
+    }
+
+    public synchronized long getInFlightBytes() {
+        return inFlightBytes;
+    }
+
+    /**
+     * Estimate the heap used while a region is read, encoded and sent to the server
+     *
+     * @param imageServer
+     * @param region
+     * @return the estimated number of bytes
+     */
+    public static long estimateBytes(ImageServer<BufferedImage> imageServer, RegionRequest region) {
+        double downsample = region.getDownsample();
+        return estimateBytes(imageServer, (long) Math.ceil(region.getWidth() / downsample),
+                (long) Math.ceil(region.getHeight() / downsample));
+    }
+
+    private static long estimateBytes(ImageServer<BufferedImage> imageServer, long width, long height) {
+        int bytesPerPixel = imageServer.getPixelType().getBytesPerPixel() * imageServer.nChannels();
+        return (long) (width * height * bytesPerPixel * FOOTPRINT_FACTOR);
+    }
+
+    /**
+     * Find the largest tile size (halving the requested one) whose estimated footprint fits in
+     * a fraction of the budget, so that a single tile never needs more than the whole budget
+     *
+     * @param imageServer
+     * @param tileSize the requested tile size
+     * @param concurrentTiles number of tiles that should fit in the budget at the same time
+     * @return the tile size to use
+     */
+    public int fitTileSize(ImageServer<BufferedImage> imageServer, int tileSize, int concurrentTiles) {
+        long budget = getMaxBytes() / Math.max(1, concurrentTiles);
+        int size = tileSize;
+        while (size > 256 && estimateBytes(imageServer, size, size) > budget) {
+            size /= 2;
+        }
+        if (size != tileSize)
+            logger.info("Reduced the tile size from {} to {} to fit the memory budget of {} MB",
+                    tileSize, size, getMaxBytes() / (1024 * 1024));
+        return size;
+    }
+
+    /**
+     * @return a new account for the reservations of one run
+     */
+    public Account openAccount() {
+        Account account = new Account();
+        accounts.add(account);
+        return account;
+    }
+
+    private void acquire(long bytes) throws InterruptedException {
+        synchronized (this) {
+            // Counted first, so that no region is read ahead with the memory reclaimed below
+            waiting++;
+        }
+        try {
+            if (!fits(bytes)) {
+                // Outside of the lock, as the accounts release the memory through it
+                for (Account account : accounts) {
+                    account.reclaim();
+                }
+            }
+            synchronized (this) {
+                while (!fits(bytes)) {
+                    wait();
+                }
+                inFlightBytes += bytes;
+            }
+        } finally {
+            synchronized (this) {
+                waiting--;
+            }
+        }
+    }
+
+    // A request larger than the budget is only admitted when nothing else is in flight
+    private synchronized boolean fits(long bytes) {
+        return inFlightBytes == 0 || inFlightBytes + bytes <= maxBytes;
+    }
+
+    private synchronized boolean tryAcquire(long bytes) {
+        // Memory released for a waiting tile is left to it
+        if (waiting > 0 || inFlightBytes + bytes > maxBytes)
+            return false;
+        inFlightBytes += bytes;
+        return true;
+    }
+
+    private synchronized void release(long bytes) {
+        inFlightBytes = Math.max(0, inFlightBytes - bytes);
+        notifyAll();
+    }
+
+    /**
+     * Tracks the reservations of a single run, so that they are all released when the run
+     * ends, even if it failed half-way
+     */
+    public class Account implements AutoCloseable {
+
+        private long reservedBytes;
+        // Releases the memory reserved only to read ahead
+        private volatile Runnable reclaimer;
+
+        private Account() {
+        }
+
+        /**
+         * @param reclaimer called when a tile of any run waits for memory, to release the
+         *                  memory that this account reserved only to read regions ahead
+         */
+        public void setReclaimer(Runnable reclaimer) {
+            this.reclaimer = reclaimer;
+        }
+
+        private void reclaim() {
+            Runnable reclaimer = this.reclaimer;
+            if (reclaimer != null)
+                reclaimer.run();
+        }
+
+        /**
+         * Reserve memory, waiting until it is available
+         *
+         * @param bytes
+         * @throws InterruptedException
+         */
+        public void acquire(long bytes) throws InterruptedException {
+            MemoryBudget.this.acquire(bytes);
+            synchronized (this) {
+                reservedBytes += bytes;
+            }
+        }
+
+        /**
+         * Reserve memory only if it is available now, and no other reservation is waiting for it
+         *
+         * @param bytes
+         * @return true if the memory was reserved
+         */
+        public boolean tryAcquire(long bytes) {
+            if (!MemoryBudget.this.tryAcquire(bytes))
+                return false;
+            synchronized (this) {
+                reservedBytes += bytes;
+            }
+            return true;
+        }
+
+        /**
+         * Release memory reserved by this account
+         *
+         * @param bytes
+         */
+        public void release(long bytes) {
+            synchronized (this) {
+                bytes = Math.min(bytes, reservedBytes);
+                reservedBytes -= bytes;
+            }
+            MemoryBudget.this.release(bytes);
+        }
+
+        /**
+         * Release everything still reserved by this account
+         */
+        @Override
+        public void close() {
+            accounts.remove(this);
+            long remaining;
+            synchronized (this) {
+                remaining = reservedBytes;
+                reservedBytes = 0;
+            }
+            if (remaining > 0)
+                MemoryBudget.this.release(remaining);
+        }
+    }
+}
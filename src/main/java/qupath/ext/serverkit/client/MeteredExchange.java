@@ -0,0 +1,158 @@
+package qupath.ext.serverkit.client;
+
+import java.nio.ByteBuffer;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+import qupath.ext.serverkit.metrics.MetricsRegistry;
+import qupath.ext.serverkit.metrics.Stage;
+
+/**
+ * Wraps the body publisher and body handler of a single HTTP exchange to split
+ * its duration into upload, server compute and download, and to count the
+ * bytes sent and received
+ */
+class MeteredExchange {
+
+    private final MetricsRegistry metrics;
+    private volatile long startNanos = System.nanoTime();
+    private volatile long uploadDoneNanos = -1;
+    private volatile long headersNanos = -1;
+    private volatile long bytesSent;
+    private volatile long bytesReceived;
+
+    MeteredExchange(MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Start measuring a new attempt of the exchange, e.g. when a request is sent again,
+     * so that the measurements only describe the last attempt
+     */
+    void restart() {
+        startNanos = System.nanoTime();
+        uploadDoneNanos = -1;
+        headersNanos = -1;
+        bytesSent = 0;
+        bytesReceived = 0;
+    }
+
+    /**
+     * @return the number of bytes of the request body sent so far
+     */
+    long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return the number of bytes of the response body received so far
+     */
+    long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * @return the time between the start of the exchange and the end of the upload,
+     *         or -1 if the upload is not finished
+     */
+    long getUploadNanos() {
+        return uploadDoneNanos < 0 ? -1 : uploadDoneNanos - startNanos;
+    }
+
+    /**
+     * Wrap a request body publisher so that the end of the upload is recorded
+     *
+     * @param publisher
+     * @return
+     */
+    HttpRequest.BodyPublisher wrap(HttpRequest.BodyPublisher publisher) {
+        return new HttpRequest.BodyPublisher() {
+            @Override
+            public long contentLength() {
+                return publisher.contentLength();
+            }
+
+            @Override
+            public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+                publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+                    @Override
+                    public void onSubscribe(Flow.Subscription subscription) {
+                        subscriber.onSubscribe(subscription);
+                    }
+
+                    @Override
+                    public void onNext(ByteBuffer item) {
+                        metrics.addBytesSent(item.remaining());
+                        bytesSent += item.remaining();
+                        subscriber.onNext(item);
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        subscriber.onError(throwable);
+                    }
+
+                    @Override
+                    public void onComplete() {
+                        uploadDoneNanos = System.nanoTime();
+                        subscriber.onComplete();
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Wrap a response body handler so that the arrival of the headers and the
+     * end of the download are recorded
+     *
+     * @param handler
+     * @return
+     * @param <T>
+     */
+    <T> HttpResponse.BodyHandler<T> wrap(HttpResponse.BodyHandler<T> handler) {
+        return responseInfo -> {
+            headersNanos = System.nanoTime();
+            long uploadDone = uploadDoneNanos < 0 ? startNanos : uploadDoneNanos;
+            metrics.record(Stage.UPLOAD, uploadDone - startNanos);
+            metrics.record(Stage.SERVER, headersNanos - uploadDone);
+            HttpResponse.BodySubscriber<T> delegate = handler.apply(responseInfo);
+            return new HttpResponse.BodySubscriber<T>() {
+                @Override
+                public CompletionStage<T> getBody() {
+                    return delegate.getBody();
+                }
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    delegate.onSubscribe(subscription);
+                }
+
+                @Override
+                public void onNext(List<ByteBuffer> item) {
+                    long bytes = 0;
+                    for (ByteBuffer buffer : item) {
+                        bytes += buffer.remaining();
+                    }
+                    metrics.addBytesReceived(bytes);
+                    bytesReceived += bytes;
+                    delegate.onNext(item);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    delegate.onError(throwable);
+                }
+
+                @Override
+                public void onComplete() {
+                    metrics.record(Stage.DOWNLOAD, System.nanoTime() - headersNanos);
+                    delegate.onComplete();
+                }
+            };
+        };
+    }
+}
@@ -0,0 +1,150 @@
+package qupath.ext.serverkit.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.TopologyException;
+import org.locationtech.jts.index.quadtree.Quadtree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Removes the duplicate objects returned for overlapping tiles or by a previous run.
+ * <p>
+ * The accepted objects are kept in a spatial index over their envelopes, so that each new
+ * object is only compared with its neighbours. Two objects are duplicates if their
+ * intersection over union reaches a threshold, or if the centroid of the smaller one lies
+ * inside the larger one (as for a cell cut at a tile border). Within a run, the larger of
+ * two duplicates is kept; objects from a previous run are always kept.
+ * <p>
+ * Objects returned for the same tile are never compared with each other: the algorithm
+ * decided that they are distinct (e.g. touching cells, nested objects, or objects of
+ * different classes), and only the overlap between tiles can create duplicates.
+ * Objects without an area (points, lines) are never merged.
+ */
+public class ObjectMerger {
+    private final static Logger logger = LoggerFactory.getLogger(ObjectMerger.class);
+
+    /**
+     * Changes to apply to the objects already added
+     *
+     * @param added new objects to keep
+     * @param removed objects previously returned as added, and that are now replaced
+     */
+    public record Result(List<PathObject> added, List<PathObject> removed) {
+    }
+
+    // Objects of a previous run have no source
+    private static final int PREVIOUS = -1;
+
+    private record Entry(PathObject pathObject, Geometry geometry, double area, int source) {
+
+        boolean previous() {
+            return source == PREVIOUS;
+        }
+    }
+
+    // Quadtree rather than STRtree: objects are inserted and removed as the tiles arrive
+    private final Quadtree index = new Quadtree();
+    private final double iouThreshold;
+
+    /**
+     * @param iouThreshold minimum intersection over union for two objects to be duplicates
+     */
+    public ObjectMerger(double iouThreshold) {
+        this.iouThreshold = iouThreshold;
+    }
+
+    /**
+     * Add objects that are already in the hierarchy: they are kept, and new objects
+     * duplicating them are dropped
+     *
+     * @param pathObjects
+     */
+    public void addPrevious(Collection<PathObject> pathObjects) {
+        for (PathObject pathObject : pathObjects) {
+            Entry entry = createEntry(pathObject, PREVIOUS);
+            if (entry != null)
+                index.insert(entry.geometry().getEnvelopeInternal(), entry);
+        }
+    }
+
+    /**
+     * Merge new objects with those added before from other sources
+     *
+     * @param pathObjects
+     * @param source the tile (or shard) the objects come from, non-negative; objects
+     *               with the same source are not compared with each other
+     * @return the objects to add, and the objects added before that they replace
+     */
+    public Result add(List<PathObject> pathObjects, int source) {
+        Set<PathObject> added = new LinkedHashSet<>();
+        List<PathObject> removed = new ArrayList<>();
+        for (PathObject pathObject : pathObjects) {
+            Entry entry = createEntry(pathObject, source);
+            if (entry == null) {
+                added.add(pathObject);
+                continue;
+            }
+            Envelope envelope = entry.geometry().getEnvelopeInternal();
+            List<Entry> duplicates = new ArrayList<>();
+            boolean keep = true;
+            for (Object item : index.query(envelope)) {
+                Entry other = (Entry) item;
+                if (other.source() == source || !isDuplicate(entry, other))
+                    continue;
+                if (other.previous() || other.area() >= entry.area()) {
+                    keep = false;
+                    break;
+                }
+                duplicates.add(other);
+            }
+            if (!keep)
+                continue;
+            // The new object replaces smaller ones, typically cut at a tile border
+            for (Entry duplicate : duplicates) {
+                index.remove(duplicate.geometry().getEnvelopeInternal(), duplicate);
+                if (!added.remove(duplicate.pathObject()))
+                    removed.add(duplicate.pathObject());
+            }
+            index.insert(envelope, entry);
+            added.add(pathObject);
+        }
+        return new Result(new ArrayList<>(added), removed);
+    }
+
+    private static Entry createEntry(PathObject pathObject, int source) {
+        ROI roi = pathObject.getROI();
+        if (roi == null || !roi.isArea() || roi.isEmpty())
+            return null;
+        Geometry geometry = roi.getGeometry();
+        return new Entry(pathObject, geometry, geometry.getArea(), source);
+    }
+
+    private boolean isDuplicate(Entry entry, Entry other) {
+        Geometry geometry = entry.geometry();
+        Geometry otherGeometry = other.geometry();
+        if (!geometry.getEnvelopeInternal().intersects(otherGeometry.getEnvelopeInternal()))
+            return false;
+        try {
+            Entry smaller = entry.area() <= other.area() ? entry : other;
+            Entry larger = smaller == entry ? other : entry;
+            if (larger.geometry().covers(smaller.geometry().getCentroid()))
+                return true;
+            double intersection = geometry.intersection(otherGeometry).getArea();
+            double union = entry.area() + other.area() - intersection;
+            return union > 0 && intersection / union >= iouThreshold;
+        } catch (TopologyException e) {
+            logger.debug("Could not compare two objects: {}", e.getLocalizedMessage());
+            return false;
+        }
+    }
+}
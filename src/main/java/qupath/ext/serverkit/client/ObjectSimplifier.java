@@ -0,0 +1,60 @@
+package qupath.ext.serverkit.client;
+
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Reduces the level of detail of decoded objects before they are displayed: polygons traced
+ * at pixel resolution often have far more vertices than needed, which costs memory, spatial
+ * indexing and rendering time. Area objects are simplified to a tolerance in image pixels,
+ * and the objects that become degenerate or are smaller than a minimum area are dropped.
+ * Objects without an area (points, lines) are left unchanged.
+ */
+class ObjectSimplifier {
+
+    private final double tolerance;
+    private final double minArea;
+
+    /**
+     * @param tolerance maximum distance between the original and the simplified outline, in
+     *                  image pixels, or 0 to keep the outlines unchanged
+     * @param minArea minimum area in square image pixels of the objects kept
+     */
+    ObjectSimplifier(double tolerance, double minArea) {
+        this.tolerance = tolerance;
+        this.minArea = minArea;
+    }
+
+    /**
+     * @return false if the objects are never changed nor dropped
+     */
+    boolean isEnabled() {
+        return tolerance > 0 || minArea > 0;
+    }
+
+    /**
+     * @param pathObject
+     * @return the simplified object (the same object if nothing changed), or null if the
+     *         object should be dropped
+     */
+    PathObject simplify(PathObject pathObject) {
+        ROI roi = pathObject.getROI();
+        if (!isEnabled() || roi == null || !roi.isArea())
+            return pathObject;
+        Geometry geometry = roi.getGeometry();
+        if (tolerance > 0)
+            geometry = TopologyPreservingSimplifier.simplify(geometry, tolerance);
+        double area = geometry.getArea();
+        if (geometry.isEmpty() || area <= 0 || area < minArea)
+            return null;
+        if (tolerance <= 0 || geometry.getNumPoints() == roi.getNumPoints())
+            return pathObject;
+        ROI simplified = GeometryTools.geometryToROI(geometry, roi.getImagePlane());
+        return PathObjects.createDetectionObject(simplified, pathObject.getPathClass(), pathObject.getMeasurementList());
+    }
+}
@@ -0,0 +1,202 @@
+package qupath.ext.serverkit.client;
+
+/**
+ * Tiling, concurrency, simplification and merging settings used when a region is processed by the {@link Client}
+ */
+public class PipelineSettings {
+
+    // Regions larger than this (in pixels, at the requested downsample) are split into tiles
+    private int tileSize = 2048;
+
+    // Pixels (at the requested downsample) shared by neighbouring tiles, so that objects
+    // cut at a tile border are found whole in the next tile
+    private int tileOverlap = 64;
+
+    // Tile size and number of concurrent requests are tuned during the runs, starting from
+    // the values below, see AdaptiveController
+    private boolean adaptive = true;
+
+    // Number of worker threads of each stage
+    private int readThreads = 2;
+    private int encodeThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int requestThreads = 4;
+    private int decodeThreads = 2;
+
+    // Number of tiles whose pixels are read ahead of the read stage, 0 to disable
+    private int readAhead = 4;
+
+    // Number of tiles that can wait in front of each stage
+    private int queueCapacity = 2;
+
+    // Outlines are simplified to this tolerance (in image pixels, 0 to disable) and objects
+    // smaller than the minimum area (in square image pixels) are dropped
+    private double simplifyTolerance = 0;
+    private double minObjectArea = 0;
+
+    // Duplicate objects from overlapping tiles and previous runs are merged
+    private boolean mergeDuplicates = true;
+    private double mergeIoUThreshold = 0.5;
+
+    // Results of a previous run of the same algorithm on the same annotation are removed once a new run completes
+    private boolean replacePreviousResults = false;
+
+    // Results are requested as a stream, decoded as the server sends them
+    private boolean streamResults = true;
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public void setTileSize(int tileSize) {
+        if (tileSize < 64)
+            throw new IllegalArgumentException("Tile size must be at least 64 pixels, not " + tileSize);
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * @return true if the tile size and the number of concurrent requests are adjusted during
+     *         the runs from the measured throughput, the settings being only their initial values
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    public int getTileOverlap() {
+        return tileOverlap;
+    }
+
+    public void setTileOverlap(int tileOverlap) {
+        if (tileOverlap < 0)
+            throw new IllegalArgumentException("Tile overlap must not be negative, not " + tileOverlap);
+        this.tileOverlap = tileOverlap;
+    }
+
+    public int getReadThreads() {
+        return readThreads;
+    }
+
+    public void setReadThreads(int readThreads) {
+        this.readThreads = Math.max(1, readThreads);
+    }
+
+    public int getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * @param readAhead number of tiles whose pixels are read in the background before the
+     *                  read stage needs them, or 0 to read each tile only when it is needed
+     */
+    public void setReadAhead(int readAhead) {
+        this.readAhead = Math.max(0, readAhead);
+    }
+
+    public int getEncodeThreads() {
+        return encodeThreads;
+    }
+
+    public void setEncodeThreads(int encodeThreads) {
+        this.encodeThreads = Math.max(1, encodeThreads);
+    }
+
+    public int getRequestThreads() {
+        return requestThreads;
+    }
+
+    /**
+     * @param requestThreads maximum number of concurrent requests sent to the server
+     */
+    public void setRequestThreads(int requestThreads) {
+        this.requestThreads = Math.max(1, requestThreads);
+    }
+
+    public int getDecodeThreads() {
+        return decodeThreads;
+    }
+
+    public void setDecodeThreads(int decodeThreads) {
+        this.decodeThreads = Math.max(1, decodeThreads);
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+
+    public double getSimplifyTolerance() {
+        return simplifyTolerance;
+    }
+
+    /**
+     * @param simplifyTolerance maximum distance between the outline returned by the server and
+     *                          the simplified one, in image pixels, or 0 to keep the outlines unchanged
+     */
+    public void setSimplifyTolerance(double simplifyTolerance) {
+        if (simplifyTolerance < 0)
+            throw new IllegalArgumentException("Simplification tolerance must not be negative, not " + simplifyTolerance);
+        this.simplifyTolerance = simplifyTolerance;
+    }
+
+    public double getMinObjectArea() {
+        return minObjectArea;
+    }
+
+    /**
+     * @param minObjectArea objects with a smaller area, in square image pixels, are dropped
+     */
+    public void setMinObjectArea(double minObjectArea) {
+        if (minObjectArea < 0)
+            throw new IllegalArgumentException("Minimum object area must not be negative, not " + minObjectArea);
+        this.minObjectArea = minObjectArea;
+    }
+
+    public boolean isMergeDuplicates() {
+        return mergeDuplicates;
+    }
+
+    public void setMergeDuplicates(boolean mergeDuplicates) {
+        this.mergeDuplicates = mergeDuplicates;
+    }
+
+    public double getMergeIoUThreshold() {
+        return mergeIoUThreshold;
+    }
+
+    /**
+     * @param mergeIoUThreshold minimum intersection over union (between 0 and 1) for two
+     *                          objects to be merged, in addition to the centroid rule
+     */
+    public void setMergeIoUThreshold(double mergeIoUThreshold) {
+        if (mergeIoUThreshold <= 0 || mergeIoUThreshold > 1)
+            throw new IllegalArgumentException("IoU threshold must be in (0, 1], not " + mergeIoUThreshold);
+        this.mergeIoUThreshold = mergeIoUThreshold;
+    }
+
+    public boolean isReplacePreviousResults() {
+        return replacePreviousResults;
+    }
+
+    public void setReplacePreviousResults(boolean replacePreviousResults) {
+        this.replacePreviousResults = replacePreviousResults;
+    }
+
+    public boolean isStreamResults() {
+        return streamResults;
+    }
+
+    /**
+     * @param streamResults if true, servers that support it send the results of each tile
+     *                      one by one as newline-delimited JSON, and they are decoded as they
+     *                      arrive instead of once the whole tile is processed
+     */
+    public void setStreamResults(boolean streamResults) {
+        this.streamResults = streamResults;
+    }
+}
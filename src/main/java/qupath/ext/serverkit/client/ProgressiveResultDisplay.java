@@ -0,0 +1,194 @@
+package qupath.ext.serverkit.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javafx.application.Platform;
+import qupath.ext.serverkit.metrics.HierarchyInsertEvent;
+import qupath.ext.serverkit.metrics.MetricsRegistry;
+import qupath.ext.serverkit.metrics.Stage;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+
+/**
+ * Inserts the results of a run into the object hierarchy while the run is still going.
+ * <p>
+ * Objects can be added from any thread as tiles complete. They are inserted in batches
+ * on the JavaFX application thread, at most once every {@link #MIN_INTERVAL_MS}
+ * milliseconds and at most {@link #MAX_BATCH_SIZE} objects per batch, with a single
+ * hierarchy event per batch: the first results show up quickly while the viewer stays
+ * responsive, even when thousands of objects arrive at once. Objects can also be removed,
+ * when a later tile replaces them.
+ */
+class ProgressiveResultDisplay {
+
+    // Minimum time between two insertions into the hierarchy
+    static final long MIN_INTERVAL_MS = 250;
+
+    // Maximum number of objects inserted during a single pulse of the FX thread
+    static final int MAX_BATCH_SIZE = 2000;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "serverkit-display");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final MetricsRegistry metrics = MetricsRegistry.getInstance();
+    private final PathObjectHierarchy hierarchy;
+    private final PathObject parentObject;
+    private final String algoName;
+    // Set rather than queue, so that removing an object not inserted yet does not scan the others
+    private final Set<PathObject> pending = new LinkedHashSet<>();
+    private final ConcurrentLinkedQueue<PathObject> pendingRemovals = new ConcurrentLinkedQueue<>();
+    private final Set<PathObject> inserted = new LinkedHashSet<>();
+    private boolean flushScheduled;
+    private long lastFlushNanos;
+    private CountDownLatch finished;
+
+    ProgressiveResultDisplay(PathObjectHierarchy hierarchy, PathObject parentObject, String algoName) {
+        this.hierarchy = hierarchy;
+        this.parentObject = parentObject;
+        this.algoName = algoName;
+    }
+
+    /**
+     * Queue objects for insertion below the parent object, or the root of the hierarchy if there is none
+     *
+     * @param pathObjects
+     */
+    void add(Collection<PathObject> pathObjects) {
+        if (pathObjects == null || pathObjects.isEmpty())
+            return;
+        synchronized (pending) {
+            pending.addAll(pathObjects);
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Queue objects for removal from the hierarchy, whether they were added by this display
+     * (and possibly not inserted yet) or were already in the hierarchy
+     *
+     * @param pathObjects
+     */
+    void remove(Collection<PathObject> pathObjects) {
+        if (pathObjects == null || pathObjects.isEmpty())
+            return;
+        pendingRemovals.addAll(pathObjects);
+        scheduleFlush();
+    }
+
+    /**
+     * Insert everything still pending and wait until it is in the hierarchy
+     *
+     * @return all the objects inserted by this display and still in the hierarchy
+     * @throws InterruptedException
+     */
+    List<PathObject> finish() throws InterruptedException {
+        if (Platform.isFxApplicationThread()) {
+            // Waiting for a later pulse would block the FX thread forever: insert everything now
+            while (hasPending()) {
+                flush();
+            }
+            synchronized (this) {
+                return new ArrayList<>(inserted);
+            }
+        }
+        CountDownLatch latch = new CountDownLatch(1);
+        synchronized (this) {
+            finished = latch;
+        }
+        Platform.runLater(this::flush);
+        latch.await();
+        synchronized (this) {
+            return new ArrayList<>(inserted);
+        }
+    }
+
+    private boolean hasPending() {
+        synchronized (pending) {
+            if (!pending.isEmpty())
+                return true;
+        }
+        return !pendingRemovals.isEmpty();
+    }
+
+    private synchronized void scheduleFlush() {
+        if (flushScheduled)
+            return;
+        flushScheduled = true;
+        long delayNanos = lastFlushNanos + TimeUnit.MILLISECONDS.toNanos(MIN_INTERVAL_MS) - System.nanoTime();
+        scheduler.schedule(() -> Platform.runLater(this::flush), Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Insert a batch of pending objects, to be called on the FX thread
+     */
+    private void flush() {
+        long start = System.nanoTime();
+        HierarchyInsertEvent insertEvent = new HierarchyInsertEvent();
+        insertEvent.begin();
+        // Removals first, as the objects to remove may still be pending
+        List<PathObject> removed = new ArrayList<>();
+        PathObject obj;
+        while ((obj = pendingRemovals.poll()) != null) {
+            boolean wasPending;
+            synchronized (pending) {
+                wasPending = pending.remove(obj);
+            }
+            if (!wasPending)
+                hierarchy.removeObjectWithoutUpdate(obj, false);
+            removed.add(obj);
+        }
+        List<PathObject> batch = new ArrayList<>();
+        synchronized (pending) {
+            Iterator<PathObject> iterator = pending.iterator();
+            while (batch.size() < MAX_BATCH_SIZE && iterator.hasNext()) {
+                batch.add(iterator.next());
+                iterator.remove();
+            }
+        }
+        // Without a parent, the objects go to the root, so that everything recorded as inserted is in the hierarchy
+        PathObject parent = parentObject == null ? hierarchy.getRootObject() : parentObject;
+        for (PathObject pathObject : batch) {
+            hierarchy.addObjectBelowParent(parent, pathObject, false);
+        }
+        if (!batch.isEmpty() || !removed.isEmpty()) {
+            // Update the hierarchy
+            hierarchy.fireHierarchyChangedEvent(parent);
+            metrics.recordSince(Stage.DISPLAY, start);
+        }
+        insertEvent.end();
+        if (insertEvent.shouldCommit()) {
+            insertEvent.setRegion(algoName, null, -1);
+            insertEvent.objectCount = batch.size();
+            insertEvent.commit();
+        }
+
+        synchronized (this) {
+            removed.forEach(inserted::remove);
+            inserted.addAll(batch);
+            lastFlushNanos = System.nanoTime();
+            flushScheduled = false;
+            if (hasPending()) {
+                // More objects arrived or the batch was full: continue on a later pulse
+                if (finished != null)
+                    Platform.runLater(this::flush);
+                else
+                    scheduleFlush();
+            } else if (finished != null) {
+                finished.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package qupath.ext.serverkit.client;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ij.ImagePlus;
+import qupath.imagej.tools.IJTools;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerBuilder;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Reads the pixels of the next tiles of a run ahead of the pipeline, so that slow image
+ * readers work while the server computes.
+ * <p>
+ * The regions are read on threads of the prefetcher and through its own instance of the image
+ * server when it can be built, so that the run does not wait on the readers used by the viewer.
+ * Each region read ahead reserves the memory of its tile in the {@link MemoryBudget} account of
+ * the run, but only if it is free: reading ahead never waits, and it is given up when a tile of
+ * any run has to wait for memory. The reservation is handed over to the tile when it is read, or
+ * released when the region is discarded (e.g. when another run shares the results of the tile).
+ * A region that is not read ahead is read when it is needed, as without prefetching.
+ */
+class RegionPrefetcher implements AutoCloseable {
+    private final static Logger logger = LoggerFactory.getLogger(RegionPrefetcher.class);
+
+    private record Entry(CompletableFuture<ImagePlus> future, long bytes) {
+    }
+
+    private final ImageServer<BufferedImage> imageServer;
+    private final boolean ownServer;
+    private final ExecutorService executor;
+    private final MemoryBudget.Account account;
+
+    // Bytes of an entry are still reserved by the prefetcher, 0 once handed over to the tile
+    private final Map<RegionRequest, Entry> entries = new HashMap<>();
+    private boolean closed;
+
+    /**
+     * @param imageServer
+     * @param threads number of regions read at the same time
+     * @param account account of the run, in which the regions read ahead reserve their memory
+     */
+    RegionPrefetcher(ImageServer<BufferedImage> imageServer, int threads, MemoryBudget.Account account) {
+        ImageServer<BufferedImage> server = buildServer(imageServer);
+        this.ownServer = server != null;
+        this.imageServer = ownServer ? server : imageServer;
+        this.account = account;
+        account.setReclaimer(this::discardAll);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "serverkit-prefetch-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Wrap the tasks of a run so that the pixels of the next tasks are read ahead
+     *
+     * @param tasks
+     * @param count number of tasks read ahead of the one returned
+     * @return the same tasks, in the same order
+     */
+    Iterator<TileTask> readAhead(Iterator<TileTask> tasks, int count) {
+        Deque<TileTask> ahead = new ArrayDeque<>();
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                while (ahead.size() <= count && tasks.hasNext()) {
+                    TileTask task = tasks.next();
+                    prefetch(task.region);
+                    ahead.add(task);
+                }
+                return !ahead.isEmpty();
+            }
+
+            @Override
+            public TileTask next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return ahead.poll();
+            }
+        };
+    }
+
+    /**
+     * Start reading a region in the background, unless its memory is not available now
+     *
+     * @param region
+     */
+    synchronized void prefetch(RegionRequest region) {
+        if (closed || entries.containsKey(region))
+            return;
+        long regionBytes = MemoryBudget.estimateBytes(imageServer, region);
+        if (!account.tryAcquire(regionBytes))
+            return;
+        CompletableFuture<ImagePlus> future = CompletableFuture.supplyAsync(() -> {
+            try {
+                return IJTools.convertToImagePlus(imageServer, region).getImage();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+        entries.put(region, new Entry(future, regionBytes));
+    }
+
+    /**
+     * Reserve the memory of a tile about to be read: the reservation of the region read ahead
+     * is taken over if there is one, otherwise the memory is acquired from the account, the
+     * regions read ahead being dropped rather than waited for if the memory is not available
+     *
+     * @param region
+     * @param bytes memory to reserve for the tile, as estimated by the {@link MemoryBudget}
+     * @throws InterruptedException
+     */
+    void reserve(RegionRequest region, long bytes) throws InterruptedException {
+        synchronized (this) {
+            Entry entry = entries.get(region);
+            if (entry != null && entry.bytes() == bytes) {
+                entries.put(region, new Entry(entry.future(), 0));
+                return;
+            }
+        }
+        account.acquire(bytes);
+    }
+
+    /**
+     * Read a region, waiting for it if it is being read ahead
+     *
+     * @param region
+     * @return the pixels of the region
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    ImagePlus read(RegionRequest region) throws IOException, InterruptedException {
+        Entry entry = remove(region);
+        if (entry != null) {
+            try {
+                return entry.future().get();
+            } catch (ExecutionException | CancellationException e) {
+                logger.debug("Could not read {} ahead, reading it again: {}", region, e.getLocalizedMessage());
+            }
+        }
+        return IJTools.convertToImagePlus(imageServer, region).getImage();
+    }
+
+    /**
+     * Drop a region read ahead that will not be consumed
+     *
+     * @param region
+     */
+    void discard(RegionRequest region) {
+        Entry entry = remove(region);
+        if (entry != null)
+            entry.future().cancel(false);
+    }
+
+    @Override
+    public void close() {
+        account.setReclaimer(null);
+        synchronized (this) {
+            closed = true;
+            for (Entry entry : entries.values()) {
+                entry.future().cancel(false);
+                account.release(entry.bytes());
+            }
+            entries.clear();
+        }
+        executor.shutdownNow();
+        if (ownServer) {
+            try {
+                imageServer.close();
+            } catch (Exception e) {
+                logger.debug("Could not close the prefetch server: {}", e.getLocalizedMessage());
+            }
+        }
+    }
+
+    private synchronized Entry remove(RegionRequest region) {
+        Entry entry = entries.remove(region);
+        if (entry != null)
+            account.release(entry.bytes());
+        return entry;
+    }
+
+    /**
+     * Drop the regions read ahead that still hold their own reservation, to free their memory
+     */
+    private synchronized void discardAll() {
+        entries.values().removeIf(entry -> {
+            if (entry.bytes() == 0)
+                return false;
+            entry.future().cancel(false);
+            account.release(entry.bytes());
+            return true;
+        });
+    }
+
+    /**
+     * @param imageServer
+     * @return a new instance of the server, or null if it cannot be built (e.g. for rendered
+     *         servers)
+     */
+    private static ImageServer<BufferedImage> buildServer(ImageServer<BufferedImage> imageServer) {
+        try {
+            ImageServerBuilder.ServerBuilder<BufferedImage> builder = imageServer.getBuilder();
+            return builder == null ? null : builder.build();
+        } catch (Exception e) {
+            logger.debug("Could not build a server for prefetching, sharing the viewer's: {}", e.getLocalizedMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package qupath.ext.serverkit.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+
+import qupath.lib.io.GsonTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Reads back the objects written by a {@link ResultFileWriter}, one line at a time.
+ * The bounding box of each feature is read first, with a streaming reader: the features
+ * outside the requested region are skipped without building their geometry, which is
+ * never reached when the bounding box comes first (as written by {@link ResultFileWriter}).
+ */
+public class ResultFileReader {
+
+    private ResultFileReader() {
+    }
+
+    /**
+     * Read the objects whose bounding box intersects a region
+     *
+     * @param path
+     * @param region the region to read, or null to read all the objects
+     * @return the objects
+     * @throws IOException
+     */
+    public static List<PathObject> readRegion(Path path, ImageRegion region) throws IOException {
+        Gson gson = GsonTools.getInstance();
+        List<PathObject> pathObjects = new ArrayList<>();
+        InputStream stream = Files.newInputStream(path);
+        if (path.getFileName().toString().endsWith(".gz"))
+            stream = new GZIPInputStream(stream, 64 * 1024);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank())
+                    continue;
+                if (region != null && !intersects(readBbox(line), region))
+                    continue;
+                PathObject pathObject = gson.fromJson(JsonParser.parseString(line), PathObject.class);
+                ROI roi = pathObject.getROI();
+                if (region != null && roi != null && (roi.getZ() != region.getZ() || roi.getT() != region.getT()))
+                    continue;
+                pathObjects.add(pathObject);
+            }
+        }
+        return pathObjects;
+    }
+
+    /**
+     * Add the objects of a region to a hierarchy
+     *
+     * @param path
+     * @param region the region to import, or null to import all the objects
+     * @param hierarchy
+     * @return the objects added
+     * @throws IOException
+     */
+    public static List<PathObject> importRegion(Path path, ImageRegion region, PathObjectHierarchy hierarchy)
+            throws IOException {
+        List<PathObject> pathObjects = readRegion(path, region);
+        hierarchy.addObjects(pathObjects);
+        return pathObjects;
+    }
+
+    /**
+     * Read the bounding box of a feature, skipping the members before it without building them
+     *
+     * @param line
+     * @return the bounding box, or null if the feature has none
+     * @throws IOException
+     */
+    private static double[] readBbox(String line) throws IOException {
+        try (JsonReader reader = new JsonReader(new StringReader(line))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"bbox".equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+                List<Double> values = new ArrayList<>(4);
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    values.add(reader.nextDouble());
+                }
+                return values.size() == 4 ? new double[] {values.get(0), values.get(1), values.get(2), values.get(3)} : null;
+            }
+            return null;
+        }
+    }
+
+    private static boolean intersects(double[] bbox, ImageRegion region) {
+        // Features without a bounding box are always read
+        if (bbox == null)
+            return true;
+        return bbox[0] < region.getMaxX() && bbox[2] > region.getMinX()
+                && bbox[1] < region.getMaxY() && bbox[3] > region.getMinY();
+    }
+}
@@ -0,0 +1,84 @@
+package qupath.ext.serverkit.client;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import qupath.lib.io.GsonTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Writes objects to a GeoJSON lines file: one GeoJSON feature per line, including its
+ * measurements, so that results can be written as they arrive instead of being kept in memory.
+ * <p>
+ * Each feature starts with a {@code bbox} member, so that the objects of a region can later be
+ * imported without parsing all the geometries (see {@link ResultFileReader}).
+ * Files whose name ends with {@code .gz} are gzip-compressed.
+ */
+public class ResultFileWriter implements AutoCloseable {
+
+    private final Gson gson = GsonTools.getInstance();
+    private final BufferedWriter writer;
+    private long count;
+
+    /**
+     * @param path the file to create, replaced if it exists
+     * @throws IOException
+     */
+    public ResultFileWriter(Path path) throws IOException {
+        OutputStream stream = Files.newOutputStream(path);
+        if (path.getFileName().toString().endsWith(".gz"))
+            stream = new GZIPOutputStream(stream, 64 * 1024);
+        this.writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Append objects to the file
+     *
+     * @param pathObjects
+     * @throws IOException
+     */
+    public synchronized void write(Collection<PathObject> pathObjects) throws IOException {
+        for (PathObject pathObject : pathObjects) {
+            JsonObject feature = new JsonObject();
+            ROI roi = pathObject.getROI();
+            if (roi != null) {
+                // First, so that readers can skip the feature before reaching its geometry
+                JsonArray bbox = new JsonArray();
+                bbox.add(roi.getBoundsX());
+                bbox.add(roi.getBoundsY());
+                bbox.add(roi.getBoundsX() + roi.getBoundsWidth());
+                bbox.add(roi.getBoundsY() + roi.getBoundsHeight());
+                feature.add("bbox", bbox);
+            }
+            gson.toJsonTree(pathObject, PathObject.class).getAsJsonObject().entrySet()
+                    .forEach(member -> feature.add(member.getKey(), member.getValue()));
+            writer.write(gson.toJson(feature));
+            writer.write('\n');
+            count++;
+        }
+    }
+
+    /**
+     * @return the number of objects written
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,319 @@
+package qupath.ext.serverkit.client;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import qupath.ext.serverkit.metrics.MetricsRegistry;
+import qupath.ext.serverkit.metrics.Stage;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Entry point to run the server algorithms from scripts, without QuPathGUI or a viewer,
+ * e.g. with QuPath's command line script runner:
+ *
+ * <pre>
+ * import qupath.ext.serverkit.client.ServerKitScripting
+ *
+ * ServerKitScripting.connect("http://localhost:8000")
+ * ServerKitScripting.run(getCurrentImageData(), getAnnotationObjects(), "stardist", [prob_thresh: 0.5])
+ * </pre>
+ *
+ * No JavaFX class is used: the results are inserted in the hierarchy from the calling thread.
+ * The tiling, concurrency and merging settings are those of {@link Client#getPipelineSettings()}.
+ */
+public class ServerKitScripting {
+    private final static Logger logger = LoggerFactory.getLogger(ServerKitScripting.class);
+
+    private ServerKitScripting() {
+    }
+
+    /**
+     * Connect to an algorithm server
+     *
+     * @param url
+     * @throws IOException if the server cannot be reached
+     */
+    public static void connect(String url) throws IOException {
+        Client.getInstance().launchHttpClient(url);
+    }
+
+    /**
+     * @return the names of the algorithms available on the server
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static List<String> getAlgorithms() throws IOException, InterruptedException {
+        return List.of(Client.getInstance().getAlgos());
+    }
+
+    /**
+     * Run an algorithm on objects or ROIs and insert the results in the hierarchy, below the
+     * objects (or in the hierarchy for ROIs)
+     *
+     * @param imageData
+     * @param targets {@link PathObject}s or {@link ROI}s to run the algorithm on
+     * @param algoName
+     * @param parameters parameter values by name; missing parameters take their default value
+     * @return the detections created
+     * @throws IOException if the server failed to process a region
+     */
+    public static List<PathObject> run(ImageData<BufferedImage> imageData, Collection<?> targets,
+            String algoName, Map<String, ?> parameters)
+            throws IOException, InterruptedException, URISyntaxException, ExecutionException {
+        return run(imageData, targets, algoName, parameters, true);
+    }
+
+    /**
+     * Run an algorithm on objects or ROIs
+     *
+     * @param imageData
+     * @param targets {@link PathObject}s or {@link ROI}s to run the algorithm on
+     * @param algoName
+     * @param parameters parameter values by name; missing parameters take their default value
+     * @param insert if true, the results are inserted in the hierarchy, and the previous results
+     *               replaced by them (see {@link PipelineSettings#isReplacePreviousResults()}) removed
+     * @return the detections created
+     * @throws IOException if the server failed to process a region
+     */
+    public static List<PathObject> run(ImageData<BufferedImage> imageData, Collection<?> targets,
+            String algoName, Map<String, ?> parameters, boolean insert)
+            throws IOException, InterruptedException, URISyntaxException, ExecutionException {
+        JsonArray serializedParams = serializeParameters(algoName, parameters);
+        List<PathObject> results = new ArrayList<>();
+        for (Object target : targets) {
+            PathObject parentObject = target instanceof PathObject pathObject ? pathObject : null;
+            results.addAll(runOnTarget(imageData, parentObject, getROI(target), algoName, serializedParams, insert));
+        }
+        return results;
+    }
+
+    /**
+     * Run an algorithm on objects or ROIs and stream the results to a GeoJSON lines file
+     * instead of the hierarchy, so that the memory used does not grow with the number of
+     * objects. The results can be imported later with {@link ResultFileReader}.
+     * <p>
+     * No object is kept in memory once written: instead of merging the duplicates found in
+     * the overlap of two tiles, each object is only written by the tile whose core (the tile
+     * without its overlap) contains its centroid or, if that tile was skipped being outside
+     * the target, by the nearest tile processed.
+     *
+     * @param imageData
+     * @param targets {@link PathObject}s or {@link ROI}s to run the algorithm on
+     * @param algoName
+     * @param parameters parameter values by name; missing parameters take their default value
+     * @param path the file to write, gzip-compressed if its name ends with {@code .gz}
+     * @return the number of objects written
+     * @throws IOException if the server failed to process a region or the file cannot be written
+     */
+    public static long runToFile(ImageData<BufferedImage> imageData, Collection<?> targets,
+            String algoName, Map<String, ?> parameters, Path path)
+            throws IOException, InterruptedException, URISyntaxException, ExecutionException {
+        JsonArray serializedParams = serializeParameters(algoName, parameters);
+        Client client = Client.getInstance();
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        ImageServer<BufferedImage> imageServer = imageData.getServer();
+
+        try (ResultFileWriter writer = new ResultFileWriter(path)) {
+            for (Object target : targets) {
+                ROI roi = getROI(target);
+                RegionRequest region = Client.getRegionRequest(imageServer, roi);
+                metrics.incrementRuns();
+                long runStart = System.nanoTime();
+                boolean success = false;
+                try {
+                    client.processRegion(imageServer, region, roi, algoName, serializedParams, ServerMessage::log, task -> {
+                        List<PathObject> owned = new ArrayList<>();
+                        for (PathObject pathObject : Client.createDetections(task.objects, algoName)) {
+                            if (isOwnedBy(pathObject.getROI(), task))
+                                owned.add(pathObject);
+                        }
+                        writer.write(owned);
+                    });
+                    success = true;
+                } finally {
+                    metrics.recordSince(Stage.TOTAL, runStart);
+                    if (!success)
+                        metrics.incrementFailedRuns();
+                }
+            }
+            logger.info("{} wrote {} object(s) to {}", algoName, writer.getCount(), path);
+            return writer.getCount();
+        }
+    }
+
+    /**
+     * @return true if the object with the ROI is written by the tile, the only one to do so
+     */
+    private static boolean isOwnedBy(ROI roi, TileTask task) {
+        if (roi == null)
+            return true;
+        double x = roi.getCentroidX();
+        double y = roi.getCentroidY();
+        if (task.generator != null)
+            return task.generator.isOwner(task, x, y);
+        ImageRegion core = task.core;
+        return x >= core.getMinX() && x < core.getMaxX() && y >= core.getMinY() && y < core.getMaxY();
+    }
+
+    private static ROI getROI(Object target) {
+        if (target instanceof PathObject pathObject)
+            return pathObject.getROI();
+        if (target instanceof ROI roi)
+            return roi;
+        throw new IllegalArgumentException("Cannot run an algorithm on " + target);
+    }
+
+    /**
+     * Run an algorithm on an object or ROI for every combination of parameter values, e.g. to
+     * tune them. The combinations are run one after the other: if the server supports image
+     * handles (see {@link Client#setImageHandlesEnabled(boolean)}), the pixels are uploaded
+     * for the first combination only. The results of each combination are independent of
+     * each other and of the objects already in the hierarchy.
+     *
+     * @param imageData
+     * @param target the {@link PathObject} or {@link ROI} to run the algorithm on
+     * @param algoName
+     * @param grid the values to try for each parameter; the other parameters take their default value
+     * @return the detections created for each combination of values, not inserted in the hierarchy
+     * @throws IOException if the server failed to process a combination
+     */
+    public static Map<Map<String, Object>, List<PathObject>> sweep(ImageData<BufferedImage> imageData, Object target,
+            String algoName, Map<String, ? extends List<?>> grid)
+            throws IOException, InterruptedException, URISyntaxException, ExecutionException {
+        JsonObject parametersJson = Client.getInstance().getParameters(algoName);
+        List<Map<String, Object>> combinations = new ArrayList<>();
+        combinations.add(new LinkedHashMap<>());
+        for (Map.Entry<String, ? extends List<?>> entry : grid.entrySet()) {
+            List<Map<String, Object>> expanded = new ArrayList<>();
+            for (Map<String, Object> combination : combinations) {
+                for (Object value : entry.getValue()) {
+                    Map<String, Object> next = new LinkedHashMap<>(combination);
+                    next.put(entry.getKey(), value);
+                    expanded.add(next);
+                }
+            }
+            combinations = expanded;
+        }
+
+        Map<Map<String, Object>, List<PathObject>> results = new LinkedHashMap<>();
+        for (Map<String, Object> combination : combinations) {
+            JsonArray serializedParams = serializeParameters(parametersJson, algoName, combination);
+            results.put(combination, runOnTarget(imageData, null, getROI(target), algoName, serializedParams, false));
+            logger.info("{} with {}: {} object(s)", algoName, combination, results.get(combination).size());
+        }
+        return results;
+    }
+
+    /**
+     * Convert parameter values to the JsonArray expected by the server, using the parameter
+     * types declared by the server
+     *
+     * @param algoName
+     * @param parameters parameter values by name, may be null
+     * @return the serialized parameters, without the image
+     * @throws IllegalArgumentException if a parameter is unknown to the algorithm
+     */
+    public static JsonArray serializeParameters(String algoName, Map<String, ?> parameters)
+            throws IOException, InterruptedException, URISyntaxException {
+        return serializeParameters(Client.getInstance().getParameters(algoName), algoName, parameters);
+    }
+
+    private static JsonArray serializeParameters(JsonObject parametersJson, String algoName, Map<String, ?> parameters) {
+        Map<String, ?> values = parameters == null ? Map.of() : parameters;
+        for (String name : values.keySet()) {
+            if (parametersJson == null || !parametersJson.has(name))
+                throw new IllegalArgumentException("Unknown parameter " + name + " for " + algoName + ", expected one of "
+                        + (parametersJson == null ? "[]" : parametersJson.keySet()));
+        }
+
+        JsonArray serializedParams = new JsonArray();
+        if (parametersJson == null)
+            return serializedParams;
+        Gson gson = new Gson();
+        for (Map.Entry<String, JsonElement> entry : parametersJson.entrySet()) {
+            JsonObject parameterValues = entry.getValue().getAsJsonObject();
+            Map<String, Object> parametersMap = new LinkedHashMap<>();
+            parametersMap.put("kind", parameterValues.get("param_type").getAsString());
+            parametersMap.put("name", entry.getKey());
+            parametersMap.put("data", values.containsKey(entry.getKey())
+                    ? gson.toJsonTree(values.get(entry.getKey()))
+                    : parameterValues.get("default"));
+            parametersMap.put("meta", new HashMap<String, Object>());
+            serializedParams.add(gson.toJsonTree(parametersMap));
+        }
+        return serializedParams;
+    }
+
+    private static List<PathObject> runOnTarget(ImageData<BufferedImage> imageData, PathObject parentObject, ROI roi,
+            String algoName, JsonArray serializedParams, boolean insert)
+            throws InterruptedException, ExecutionException {
+        Client client = Client.getInstance();
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        ImageServer<BufferedImage> imageServer = imageData.getServer();
+        RegionRequest region = Client.getRegionRequest(imageServer, roi);
+
+        Set<PathObject> added = new LinkedHashSet<>();
+        List<PathObject> removed = new ArrayList<>();
+        List<PathObject> replacedResults = client.getResultsToReplace(parentObject, algoName);
+        metrics.incrementRuns();
+        long runStart = System.nanoTime();
+        boolean success = false;
+        try {
+            client.processRegion(imageServer, region, roi, algoName, serializedParams, ServerMessage::log,
+                    client.createResultSink(parentObject, algoName, added::addAll, pathObjects -> {
+                        for (PathObject pathObject : pathObjects) {
+                            if (!added.remove(pathObject))
+                                removed.add(pathObject);
+                        }
+                    }));
+            // The previous results are only replaced once the new ones are complete
+            removed.addAll(replacedResults);
+            success = true;
+        } finally {
+            metrics.recordSince(Stage.TOTAL, runStart);
+            if (!success)
+                metrics.incrementFailedRuns();
+        }
+        logger.info("{} found {} object(s) in {}", algoName, added.size(), region);
+
+        if (insert) {
+            PathObjectHierarchy hierarchy = imageData.getHierarchy();
+            if (!removed.isEmpty())
+                hierarchy.removeObjects(removed, false);
+            if (parentObject == null) {
+                hierarchy.addObjects(added);
+            } else {
+                for (PathObject pathObject : added) {
+                    hierarchy.addObjectBelowParent(parentObject, pathObject, false);
+                }
+                hierarchy.fireHierarchyChangedEvent(parentObject);
+            }
+        }
+        return new ArrayList<>(added);
+    }
+}
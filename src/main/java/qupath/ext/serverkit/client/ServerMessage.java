@@ -0,0 +1,34 @@
+package qupath.ext.serverkit.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A message for the user found in the results of the server: a notification sent by the
+ * algorithm, or a result that the extension cannot handle.
+ * <p>
+ * Messages are only decoded here, without touching any JavaFX class, so that headless runs
+ * can log them; the GUI decides whether and how to show them.
+ *
+ * @param level
+ * @param title
+ * @param text
+ */
+public record ServerMessage(Level level, String title, String text) {
+    private final static Logger logger = LoggerFactory.getLogger(ServerMessage.class);
+
+    public enum Level {
+        INFO, WARNING, ERROR
+    }
+
+    /**
+     * Write the message to the log, at the matching level
+     */
+    public void log() {
+        switch (level) {
+            case ERROR -> logger.error("{}: {}", title, text);
+            case WARNING -> logger.warn("{}: {}", title, text);
+            default -> logger.info("{}: {}", title, text);
+        }
+    }
+}
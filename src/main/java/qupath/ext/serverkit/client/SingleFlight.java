@@ -0,0 +1,41 @@
+package qupath.ext.serverkit.client;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets concurrent callers asking for the same key share the work of the first one.
+ * <p>
+ * The first caller (the leader) does the work and completes the future of the flight;
+ * the others (followers) wait for it. A key is forgotten as soon as its flight completes,
+ * so results are only shared between requests that overlap in time, never cached.
+ *
+ * @param <K> the key identifying identical requests
+ * @param <V> the result of a request
+ */
+class SingleFlight<K, V> {
+
+    /**
+     * @param future completed by the leader with the result, or exceptionally if it failed
+     * @param leader true if the caller must do the work and complete the future
+     */
+    record Flight<V>(CompletableFuture<V> future, boolean leader) {
+    }
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Join the flight of a key, or start it if there is none
+     *
+     * @param key
+     * @return the flight
+     */
+    Flight<V> join(K key) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null)
+            return new Flight<>(existing, false);
+        future.whenComplete((result, exception) -> inFlight.remove(key, future));
+        return new Flight<>(future, true);
+    }
+}
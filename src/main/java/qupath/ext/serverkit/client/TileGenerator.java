@@ -0,0 +1,153 @@
+package qupath.ext.serverkit.client;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.locationtech.jts.geom.Geometry;
+
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Splits a region into tiles lazily, row by row, each extended by the overlap on all sides
+ * (within the region).
+ */
+class TileGenerator implements Iterator<TileTask> {
+
+    private final RegionRequest region;
+    private final Geometry geometry;
+    private final int step;
+    private final int margin;
+    // Whether the tile at each position of the grid is generated, by the index of its row and column
+    private final Map<Long, Boolean> generated = new ConcurrentHashMap<>();
+
+    private int x;
+    private int y;
+    private int count;
+    private TileTask next;
+
+    /**
+     * @param region
+     * @param roi if not null, tiles that do not intersect it are skipped
+     * @param tileSize in pixels at the region's downsample
+     * @param overlap in pixels at the region's downsample
+     */
+    TileGenerator(RegionRequest region, ROI roi, int tileSize, int overlap) {
+        this.region = region;
+        this.geometry = roi == null || !roi.isArea() ? null : roi.getGeometry();
+        this.step = (int) Math.ceil(tileSize * region.getDownsample());
+        this.margin = (int) Math.ceil(overlap * region.getDownsample());
+        this.x = region.getMinX();
+        this.y = region.getMinY();
+    }
+
+    @Override
+    public synchronized boolean hasNext() {
+        while (next == null && y < region.getMaxY()) {
+            if (isGenerated((x - region.getMinX()) / step, (y - region.getMinY()) / step)) {
+                ImageRegion bounds = getBounds(x, y);
+                RegionRequest tile = RegionRequest.createInstance(region.getPath(), region.getDownsample(),
+                        bounds.getX(), bounds.getY(), bounds.getWidth(), bounds.getHeight(),
+                        region.getZ(), region.getT());
+                ImageRegion core = getCore(x, y);
+                next = new TileTask(count++, tile, core);
+                next.fullSize = core.getWidth() == step && core.getHeight() == step;
+                next.generator = this;
+            }
+            x += step;
+            if (x >= region.getMaxX()) {
+                x = region.getMinX();
+                y += step;
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public synchronized TileTask next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        TileTask task = next;
+        next = null;
+        return task;
+    }
+
+    /**
+     * Decide whether a tile keeps an object found in the overlap of several tiles, so that
+     * exactly one tile does: the tile whose core contains the centroid of the object or, if
+     * that tile is skipped, the generated tile with the nearest core among those containing it.
+     *
+     * @param task a tile of this generator
+     * @param x the x coordinate of the centroid of the object
+     * @param y the y coordinate of the centroid of the object
+     * @return true if the tile keeps the object
+     */
+    boolean isOwner(TileTask task, double x, double y) {
+        int lastColumn = (region.getWidth() - 1) / step;
+        int lastRow = (region.getHeight() - 1) / step;
+        int column = Math.min(lastColumn, Math.max(0, (int) Math.floor((x - region.getMinX()) / step)));
+        int row = Math.min(lastRow, Math.max(0, (int) Math.floor((y - region.getMinY()) / step)));
+        if (isGenerated(column, row))
+            return isCoreOf(task, column, row);
+
+        // The tiles containing the point are those whose core is at most the overlap away
+        int reach = (margin + step - 1) / step;
+        int ownerColumn = -1;
+        int ownerRow = -1;
+        double ownerDistance = Double.POSITIVE_INFINITY;
+        for (int r = Math.max(0, row - reach); r <= Math.min(lastRow, row + reach); r++) {
+            for (int c = Math.max(0, column - reach); c <= Math.min(lastColumn, column + reach); c++) {
+                ImageRegion core = getCore(region.getMinX() + c * step, region.getMinY() + r * step);
+                // Distance along the farthest axis, so that the tile contains the point if it is within the overlap
+                double distance = Math.max(Math.max(core.getMinX() - x, x - core.getMaxX()),
+                        Math.max(core.getMinY() - y, y - core.getMaxY()));
+                if (distance < ownerDistance && distance <= margin && isGenerated(c, r)) {
+                    ownerColumn = c;
+                    ownerRow = r;
+                    ownerDistance = distance;
+                }
+            }
+        }
+        // An object out of reach of every generated tile cannot come from one: keep it where it was found
+        if (ownerColumn < 0)
+            return true;
+        return isCoreOf(task, ownerColumn, ownerRow);
+    }
+
+    private boolean isCoreOf(TileTask task, int column, int row) {
+        return task.core.getMinX() == region.getMinX() + column * step
+                && task.core.getMinY() == region.getMinY() + row * step;
+    }
+
+    /**
+     * @return true if the tile in a column and row of the grid intersects the ROI, and is not skipped
+     */
+    private boolean isGenerated(int column, int row) {
+        if (geometry == null)
+            return true;
+        return generated.computeIfAbsent(((long) row << 32) | column, key -> {
+            ImageRegion bounds = getBounds(region.getMinX() + column * step, region.getMinY() + row * step);
+            return geometry.intersects(ROIs.createRectangleROI(bounds.getX(), bounds.getY(),
+                    bounds.getWidth(), bounds.getHeight(), region.getImagePlane()).getGeometry());
+        });
+    }
+
+    // The part of the tile at (x, y) not shared with the neighbouring tiles
+    private ImageRegion getCore(int x, int y) {
+        return ImageRegion.createInstance(x, y, Math.min(step, region.getMaxX() - x),
+                Math.min(step, region.getMaxY() - y), region.getZ(), region.getT());
+    }
+
+    // The tile at (x, y) with its overlap on all sides, within the region
+    private ImageRegion getBounds(int x, int y) {
+        int minX = Math.max(region.getMinX(), x - margin);
+        int minY = Math.max(region.getMinY(), y - margin);
+        int maxX = Math.min(region.getMaxX(), x + step + margin);
+        int maxY = Math.min(region.getMaxY(), y + step + margin);
+        return ImageRegion.createInstance(minX, minY, maxX - minX, maxY - minY, region.getZ(), region.getT());
+    }
+}
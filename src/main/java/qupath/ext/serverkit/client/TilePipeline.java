@@ -0,0 +1,187 @@
+package qupath.ext.serverkit.client;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tiles through a sequence of stages connected by bounded queues.
+ * <p>
+ * Each stage has its own pool of worker threads. When the queue in front of a
+ * stage is full, the upstream stage blocks: reading and encoding never run far
+ * ahead of the server, while the local cores keep preparing the next tiles
+ * during network waits. The results are handed to a sink on the calling thread.
+ * The first failure in any stage cancels the whole pipeline.
+ */
+class TilePipeline {
+    private final static Logger logger = LoggerFactory.getLogger(TilePipeline.class);
+
+    // Marks the end of the tasks in a queue, one per worker of the consuming stage
+    private static final TileTask END = new TileTask(-1, null, null);
+
+    /**
+     * The work done by a stage on a single tile
+     */
+    interface Step {
+        void process(TileTask task) throws Exception;
+    }
+
+    private record StageDefinition(String name, int parallelism, int queueCapacity, Step step) {
+    }
+
+    private final String name;
+    private final List<StageDefinition> stages = new ArrayList<>();
+    private volatile Throwable failure;
+    private volatile ExecutorService executor;
+
+    TilePipeline(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Append a stage to the pipeline
+     *
+     * @param stageName used to name the worker threads
+     * @param parallelism number of worker threads of the stage
+     * @param queueCapacity number of tiles that can wait in front of the stage
+     * @param step
+     * @return this pipeline
+     */
+    TilePipeline addStage(String stageName, int parallelism, int queueCapacity, Step step) {
+        stages.add(new StageDefinition(stageName, Math.max(1, parallelism), Math.max(1, queueCapacity), step));
+        return this;
+    }
+
+    /**
+     * Stop all stages; {@link #run(Iterator, Step)} then throws a {@link CancellationException}
+     */
+    void cancel() {
+        fail(new CancellationException(name + " cancelled"));
+    }
+
+    /**
+     * Process all the tasks and pass each completed one to the sink, in order of completion
+     *
+     * @param tasks created lazily, as the first stage is ready to accept them
+     * @param sink called on the current thread
+     * @throws ExecutionException if a stage or the sink failed
+     * @throws InterruptedException
+     */
+    void run(Iterator<TileTask> tasks, Step sink) throws ExecutionException, InterruptedException {
+        List<BlockingQueue<TileTask>> queues = new ArrayList<>();
+        int nThreads = 1;
+        for (StageDefinition stage : stages) {
+            queues.add(new ArrayBlockingQueue<>(stage.queueCapacity()));
+            nThreads += stage.parallelism();
+        }
+        BlockingQueue<TileTask> output = new ArrayBlockingQueue<>(stages.get(stages.size() - 1).queueCapacity());
+        queues.add(output);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(nThreads, r -> {
+            Thread thread = new Thread(r, name + "-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (failure != null)
+            executor.shutdownNow();
+
+        try {
+            executor.execute(() -> feed(tasks, queues.get(0), stages.get(0).parallelism()));
+            for (int i = 0; i < stages.size(); i++) {
+                StageDefinition stage = stages.get(i);
+                int downstreamWorkers = i + 1 < stages.size() ? stages.get(i + 1).parallelism() : 1;
+                AtomicInteger activeWorkers = new AtomicInteger(stage.parallelism());
+                for (int w = 0; w < stage.parallelism(); w++) {
+                    BlockingQueue<TileTask> in = queues.get(i);
+                    BlockingQueue<TileTask> out = queues.get(i + 1);
+                    executor.execute(() -> work(stage, in, out, activeWorkers, downstreamWorkers));
+                }
+            }
+
+            while (failure == null) {
+                TileTask task = output.poll(100, TimeUnit.MILLISECONDS);
+                if (task == END)
+                    break;
+                if (task != null) {
+                    sink.process(task);
+                    // Consumed: the iterator of the tasks may still reference the task
+                    task.objects = null;
+                    task.flight = null;
+                }
+            }
+        } catch (InterruptedException e) {
+            fail(e);
+            throw e;
+        } catch (Exception e) {
+            fail(e);
+        } finally {
+            executor.shutdownNow();
+        }
+        if (failure instanceof CancellationException cancellation)
+            throw cancellation;
+        if (failure != null)
+            throw new ExecutionException(failure);
+    }
+
+    private void feed(Iterator<TileTask> tasks, BlockingQueue<TileTask> queue, int consumers) {
+        try {
+            while (failure == null && tasks.hasNext()) {
+                queue.put(tasks.next());
+            }
+            for (int i = 0; i < consumers; i++) {
+                queue.put(END);
+            }
+        } catch (InterruptedException e) {
+            logger.debug("{} stopped feeding tiles", name);
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    private void work(StageDefinition stage, BlockingQueue<TileTask> in, BlockingQueue<TileTask> out,
+            AtomicInteger activeWorkers, int downstreamWorkers) {
+        try {
+            while (failure == null) {
+                TileTask task = in.take();
+                if (task == END)
+                    break;
+                stage.step().process(task);
+                out.put(task);
+            }
+            // The last worker of the stage tells every downstream worker that no more tiles will come
+            if (activeWorkers.decrementAndGet() == 0) {
+                for (int i = 0; i < downstreamWorkers; i++) {
+                    out.put(END);
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.debug("{} stage {} interrupted", name, stage.name());
+        } catch (Exception e) {
+            logger.debug("{} stage {} failed", name, stage.name(), e);
+            fail(e);
+        }
+    }
+
+    private void fail(Throwable throwable) {
+        synchronized (this) {
+            if (failure != null)
+                return;
+            failure = throwable;
+        }
+        ExecutorService currentExecutor = executor;
+        if (currentExecutor != null)
+            currentExecutor.shutdownNow();
+    }
+}
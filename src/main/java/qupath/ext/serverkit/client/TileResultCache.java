@@ -0,0 +1,77 @@
+package qupath.ext.serverkit.client;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Least-recently-used cache of the objects returned by the server for a tile, keyed by
+ * the tile region (including its downsample), the algorithm and its parameters
+ */
+public class TileResultCache {
+
+    /**
+     * Identifies the result of an algorithm on a tile
+     *
+     * @param region the tile, at the downsample it was sent to the server
+     * @param algoName
+     * @param parameters serialized parameters of the algorithm
+     */
+    public record Key(RegionRequest region, String algoName, String parameters) {
+    }
+
+    private final int maxTiles;
+    private final LinkedHashMap<Key, List<PathObject>> map;
+    private BiConsumer<Key, List<PathObject>> evictionListener;
+
+    /**
+     * @param maxTiles maximum number of tiles kept in the cache
+     */
+    public TileResultCache(int maxTiles) {
+        this.maxTiles = maxTiles;
+        this.map = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, List<PathObject>> eldest) {
+                if (size() <= TileResultCache.this.maxTiles)
+                    return false;
+                if (evictionListener != null)
+                    evictionListener.accept(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @param listener called (while holding the cache lock) for each tile evicted from the cache
+     */
+    public synchronized void setEvictionListener(BiConsumer<Key, List<PathObject>> listener) {
+        this.evictionListener = listener;
+    }
+
+    /**
+     * @param key
+     * @return the cached objects, or null if the tile is not cached
+     */
+    public synchronized List<PathObject> get(Key key) {
+        return map.get(key);
+    }
+
+    public synchronized void put(Key key, List<PathObject> objects) {
+        map.put(key, List.copyOf(objects));
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * Remove all the tiles, without notifying the eviction listener
+     */
+    public synchronized void clear() {
+        map.clear();
+    }
+}
@@ -0,0 +1,58 @@
+package qupath.ext.serverkit.client;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.google.gson.JsonArray;
+
+import ij.ImagePlus;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * The state of one tile as it moves through a {@link TilePipeline}.
+ * Each stage clears the field it consumed so that only the current
+ * representation of the tile stays in memory.
+ */
+class TileTask {
+
+    final int index;
+    final RegionRequest region;
+
+    // The part of the region not shared with the neighbouring tiles
+    final ImageRegion core;
+
+    // False if the tile is smaller than the others, being clipped by the border of the region
+    boolean fullSize;
+
+    // The generator of the tile, which decides the tile keeping an object found in several tiles
+    TileGenerator generator;
+
+    ImagePlus image;
+    String requestBody;
+    JsonArray response;
+    List<PathObject> objects;
+
+    // Content hash of the pixels, and the pixels themselves while only their handle is sent
+    String imageHash;
+    byte[] imageBytes;
+
+    // Memory reserved in the MemoryBudget until the request is sent
+    long reservedBytes;
+
+    // Completed with the objects of the tile if this task leads a flight of identical requests
+    CompletableFuture<List<PathObject>> flight;
+
+    // True if the objects were shared by an identical request, and all the stages are skipped
+    boolean shared;
+
+    // True if the server streamed the results, decoded as they arrived
+    boolean streamed;
+
+    TileTask(int index, RegionRequest region, ImageRegion core) {
+        this.index = index;
+        this.region = region;
+        this.core = core;
+    }
+}
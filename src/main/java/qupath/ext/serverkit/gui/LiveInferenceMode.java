@@ -0,0 +1,314 @@
+package qupath.ext.serverkit.gui;
+
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.util.Duration;
+import qupath.ext.serverkit.client.Client;
+import qupath.ext.serverkit.client.TileResultCache;
+import qupath.lib.gui.viewer.QuPathViewer;
+import qupath.lib.gui.viewer.QuPathViewerListener;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Runs an algorithm on the tiles visible in a viewer while the user pans and zooms.
+ * <p>
+ * Viewer changes are debounced, requests for tiles that scrolled out of view are
+ * cancelled, and the results are cached by tile, downsample and parameters so that
+ * revisiting a region does not call the server again. Only the results for the
+ * current downsample and parameters are shown, as detections painted in an overlay of
+ * the viewer rather than added to the hierarchy, so that they are never saved with the
+ * image. All methods must be called on the JavaFX application thread.
+ */
+public class LiveInferenceMode implements QuPathViewerListener {
+    private final static Logger logger = LoggerFactory.getLogger(LiveInferenceMode.class);
+
+    // Size of the tiles sent to the server, in pixels at the tile downsample
+    static final int TILE_SIZE = 512;
+
+    // Time without viewer changes before the visible tiles are requested
+    static final Duration DEBOUNCE = Duration.millis(300);
+
+    // Maximum number of tiles whose results are kept in memory
+    static final int MAX_CACHED_TILES = 256;
+
+    private final QuPathViewer viewer;
+    private final String algoName;
+    private final ParameterList parameterList;
+    private final TileResultCache cache = new TileResultCache(MAX_CACHED_TILES);
+    private final PauseTransition debounce = new PauseTransition(DEBOUNCE);
+    private final Map<TileResultCache.Key, Future<?>> inFlight = new HashMap<>();
+    private final Map<TileResultCache.Key, List<PathObject>> displayed = new HashMap<>();
+    private ExecutorService executor;
+    private ImageServer<BufferedImage> imageServer;
+    // Path of the tiles, identifying the pixels they are read from
+    private String sourcePath;
+    private LiveResultOverlay overlay;
+    private String parametersKey;
+    private Runnable onStopped;
+
+    public LiveInferenceMode(QuPathViewer viewer, String algoName, ParameterList parameterList) {
+        this.viewer = viewer;
+        this.algoName = algoName;
+        this.parameterList = parameterList;
+        debounce.setOnFinished(e -> update());
+        // Evicted tiles are removed from the hierarchy if they are shown
+        cache.setEvictionListener((key, objects) -> Platform.runLater(() -> hide(key)));
+    }
+
+    /**
+     * Start listening to the viewer and process the tiles currently visible
+     *
+     * @throws IOException if the image server cannot be created
+     */
+    public void start() throws IOException {
+        if (executor != null)
+            return;
+        imageServer = Client.getImageServer(viewer);
+        // A rendered or transformed server shares the path of the image but not its pixels,
+        // which can change between runs (e.g. with the display settings): its tiles are only
+        // reused within a run
+        if (imageServer == viewer.getServer()) {
+            sourcePath = imageServer.getPath();
+        } else {
+            cache.clear();
+            sourcePath = imageServer.getPath() + "#" + UUID.randomUUID();
+        }
+        overlay = new LiveResultOverlay(viewer.getOverlayOptions());
+        viewer.getCustomOverlayLayers().add(overlay);
+        parametersKey = Client.serializeParameters(parameterList).toString();
+        int nThreads = Client.getInstance().getPipelineSettings().getRequestThreads();
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(nThreads, r -> {
+            Thread thread = new Thread(r, "serverkit-live-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        viewer.addViewerListener(this);
+        logger.info("Started live mode with {}", algoName);
+        update();
+    }
+
+    /**
+     * Stop processing new tiles and remove the results shown. The cache is kept so that
+     * restarting on the same pixels does not process the same tiles again.
+     */
+    public void stop() {
+        if (executor == null)
+            return;
+        viewer.removeViewerListener(this);
+        debounce.stop();
+        inFlight.values().forEach(future -> future.cancel(true));
+        inFlight.clear();
+        executor.shutdownNow();
+        executor = null;
+        hideAll();
+        viewer.getCustomOverlayLayers().remove(overlay);
+        overlay = null;
+        logger.info("Stopped live mode with {}", algoName);
+        if (onStopped != null)
+            onStopped.run();
+    }
+
+    /**
+     * Set an action to run whenever the live mode stops, including when the viewer stops it
+     *
+     * @param onStopped
+     */
+    public void setOnStopped(Runnable onStopped) {
+        this.onStopped = onStopped;
+    }
+
+    public boolean isRunning() {
+        return executor != null;
+    }
+
+    /**
+     * Take into account new parameter values: the results for the previous values are
+     * hidden and the visible tiles are processed again
+     */
+    public void parametersChanged() {
+        if (executor == null)
+            return;
+        parametersKey = Client.serializeParameters(parameterList).toString();
+        debounce.playFromStart();
+    }
+
+    @Override
+    public void visibleRegionChanged(QuPathViewer viewer, Shape shape) {
+        debounce.playFromStart();
+    }
+
+    @Override
+    public void imageDataChanged(QuPathViewer viewer, ImageData<BufferedImage> imageDataOld,
+            ImageData<BufferedImage> imageDataNew) {
+        stop();
+        // The cached results belong to the previous image
+        cache.clear();
+    }
+
+    @Override
+    public void selectedObjectChanged(QuPathViewer viewer, PathObject pathObjectSelected) {
+    }
+
+    @Override
+    public void viewerClosed(QuPathViewer viewer) {
+        stop();
+        cache.clear();
+    }
+
+    /**
+     * Compute the visible tiles, cancel the requests for tiles no longer needed,
+     * show the cached tiles and request the missing ones
+     */
+    private void update() {
+        if (executor == null || viewer.getImageData() == null)
+            return;
+        Set<TileResultCache.Key> visible = getVisibleTiles();
+
+        // Cancel the requests that are not needed anymore
+        inFlight.entrySet().removeIf(entry -> {
+            if (visible.contains(entry.getKey()))
+                return false;
+            entry.getValue().cancel(true);
+            return true;
+        });
+
+        // Hide the results for another downsample or other parameters
+        for (TileResultCache.Key key : new ArrayList<>(displayed.keySet())) {
+            if (!isCurrent(key))
+                hide(key);
+        }
+
+        JsonArray serializedParams = Client.serializeParameters(parameterList);
+        for (TileResultCache.Key key : visible) {
+            List<PathObject> cached = cache.get(key);
+            if (cached != null) {
+                show(key, cached);
+            } else if (!inFlight.containsKey(key)) {
+                inFlight.put(key, executor.submit(() -> process(key, serializedParams)));
+            }
+        }
+    }
+
+    private void process(TileResultCache.Key key, JsonArray serializedParams) {
+        try {
+            List<PathObject> detections = Client.getInstance()
+                    .runOnRegion(imageServer, key.region(), algoName, serializedParams).stream()
+                    .map(Client::createDetection)
+                    .toList();
+            Platform.runLater(() -> {
+                if (inFlight.remove(key) == null)
+                    return;
+                cache.put(key, detections);
+                if (isCurrent(key))
+                    show(key, cache.get(key));
+            });
+        } catch (InterruptedException | CancellationException e) {
+            logger.debug("Live request for {} cancelled", key.region());
+        } catch (Exception e) {
+            logger.error("Live processing of {} with {} failed: {}", key.region(), algoName, e.getLocalizedMessage());
+            Platform.runLater(() -> inFlight.remove(key));
+        }
+    }
+
+    private boolean isCurrent(TileResultCache.Key key) {
+        return key.parameters().equals(parametersKey)
+                && key.region().getDownsample() == getTileDownsample()
+                && key.region().getZ() == viewer.getZPosition()
+                && key.region().getT() == viewer.getTPosition();
+    }
+
+    private void show(TileResultCache.Key key, List<PathObject> objects) {
+        if (overlay == null || displayed.containsKey(key) || objects.isEmpty())
+            return;
+        displayed.put(key, objects);
+        updateOverlay();
+    }
+
+    private void hide(TileResultCache.Key key) {
+        if (displayed.remove(key) != null)
+            updateOverlay();
+    }
+
+    private void hideAll() {
+        displayed.clear();
+        updateOverlay();
+    }
+
+    private void updateOverlay() {
+        if (overlay == null)
+            return;
+        overlay.setPathObjects(displayed.values().stream().flatMap(List::stream).toList());
+        viewer.repaint();
+    }
+
+    /**
+     * @return the downsample of the tiles for the current zoom, snapped to a power of 2
+     *         so that small zoom changes reuse the cached tiles
+     */
+    private double getTileDownsample() {
+        double downsample = Math.max(1.0, viewer.getDownsampleFactor());
+        return Math.pow(2, Math.floor(Math.log(downsample) / Math.log(2)));
+    }
+
+    /**
+     * @return the keys of the tiles intersecting the visible region, closest to its centre first
+     */
+    private Set<TileResultCache.Key> getVisibleTiles() {
+        Rectangle bounds = viewer.getDisplayedRegionShape().getBounds();
+        double downsample = getTileDownsample();
+        int step = (int) Math.ceil(TILE_SIZE * downsample);
+        int width = imageServer.getWidth();
+        int height = imageServer.getHeight();
+        int minX = Math.max(0, bounds.x / step * step);
+        int minY = Math.max(0, bounds.y / step * step);
+        int maxX = Math.min(width, bounds.x + bounds.width);
+        int maxY = Math.min(height, bounds.y + bounds.height);
+        double centreX = bounds.getCenterX();
+        double centreY = bounds.getCenterY();
+
+        List<RegionRequest> tiles = new ArrayList<>();
+        for (int y = minY; y < maxY; y += step) {
+            for (int x = minX; x < maxX; x += step) {
+                tiles.add(RegionRequest.createInstance(sourcePath, downsample, x, y,
+                        Math.min(step, width - x), Math.min(step, height - y),
+                        viewer.getZPosition(), viewer.getTPosition()));
+            }
+        }
+        tiles.sort(Comparator.comparingDouble(r -> Math.hypot(
+                r.getX() + r.getWidth() / 2.0 - centreX, r.getY() + r.getHeight() / 2.0 - centreY)));
+
+        Set<TileResultCache.Key> keys = new LinkedHashSet<>();
+        for (RegionRequest tile : tiles) {
+            keys.add(new TileResultCache.Key(tile, algoName, parametersKey));
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,53 @@
+package qupath.ext.serverkit.gui;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Collection;
+import java.util.List;
+
+import qupath.lib.gui.viewer.OverlayOptions;
+import qupath.lib.gui.viewer.PathObjectPainter;
+import qupath.lib.gui.viewer.overlays.AbstractOverlay;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Paints the results of the live mode over the image, without adding them to the hierarchy:
+ * they are never saved with the image data, and never mixed with the results of normal runs.
+ */
+class LiveResultOverlay extends AbstractOverlay {
+
+    // Replaced as a whole, as the overlay is painted while the live mode updates it
+    private volatile List<PathObject> pathObjects = List.of();
+
+    LiveResultOverlay(OverlayOptions overlayOptions) {
+        super(overlayOptions);
+    }
+
+    /**
+     * @param pathObjects the objects to paint from now on
+     */
+    void setPathObjects(Collection<PathObject> pathObjects) {
+        this.pathObjects = List.copyOf(pathObjects);
+    }
+
+    @Override
+    public void paintOverlay(Graphics2D g2d, ImageRegion imageRegion, double downsampleFactor,
+            ImageData<BufferedImage> imageData, boolean paintCompletely) {
+        if (!isVisible())
+            return;
+        List<PathObject> visible = pathObjects.stream()
+                .filter(pathObject -> intersects(pathObject.getROI(), imageRegion))
+                .toList();
+        if (!visible.isEmpty())
+            PathObjectPainter.paintSpecifiedObjects(g2d, visible, getOverlayOptions(), null, downsampleFactor);
+    }
+
+    private static boolean intersects(ROI roi, ImageRegion region) {
+        return roi != null && roi.getZ() == region.getZ() && roi.getT() == region.getT()
+                && roi.getBoundsX() < region.getMaxX() && roi.getBoundsX() + roi.getBoundsWidth() > region.getMinX()
+                && roi.getBoundsY() < region.getMaxY() && roi.getBoundsY() + roi.getBoundsHeight() > region.getMinY();
+    }
+}
@@ -0,0 +1,148 @@
+package qupath.ext.serverkit.gui;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.geometry.Insets;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.GridPane;
+import javafx.scene.layout.HBox;
+import javafx.stage.FileChooser;
+import javafx.stage.Stage;
+import javafx.util.Duration;
+import qupath.ext.serverkit.metrics.LatencyHistogram;
+import qupath.ext.serverkit.metrics.MetricsRegistry;
+import qupath.fx.dialogs.Dialogs;
+import qupath.lib.gui.QuPathGUI;
+
+/**
+ * Window displaying the per-stage timings and counters collected by the {@link MetricsRegistry}
+ */
+public class MetricsPane {
+    private final static Logger logger = LoggerFactory.getLogger(MetricsPane.class);
+    private final MetricsRegistry metrics = MetricsRegistry.getInstance();
+    private final GridPane grid = new GridPane();
+    private final Stage stage;
+
+    public MetricsPane(QuPathGUI qupath) {
+        stage = buildUI();
+        if (qupath != null)
+            stage.initOwner(qupath.getStage());
+        stage.setTitle("Imaging Server Kit performance");
+    }
+
+    /**
+     * Show the window, refreshing its content every second while it is visible
+     */
+    public void show() {
+        Timeline timeline = new Timeline(new KeyFrame(Duration.seconds(1), e -> refresh()));
+        timeline.setCycleCount(Timeline.INDEFINITE);
+        stage.setOnShown(e -> timeline.play());
+        stage.setOnHidden(e -> timeline.stop());
+        refresh();
+        stage.show();
+    }
+
+    private Stage buildUI() {
+        grid.setHgap(10);
+        grid.setVgap(3);
+        grid.setPadding(new Insets(5, 5, 5, 5));
+
+        Button btnReset = new Button("Reset");
+        btnReset.setOnAction(e -> {
+            metrics.reset();
+            refresh();
+        });
+        Button btnCsv = new Button("Export CSV...");
+        btnCsv.setOnAction(e -> export("CSV file", "*.csv", "serverkit-metrics.csv", false));
+        Button btnPrometheus = new Button("Export Prometheus...");
+        btnPrometheus.setOnAction(e -> export("Prometheus text file", "*.prom", "serverkit-metrics.prom", true));
+
+        HBox buttons = new HBox(5, btnReset, btnCsv, btnPrometheus);
+        buttons.setPadding(new Insets(5, 5, 5, 5));
+
+        BorderPane pane = new BorderPane();
+        pane.setCenter(grid);
+        pane.setBottom(buttons);
+
+        Stage dialogStage = new Stage();
+        dialogStage.setMinWidth(500);
+        dialogStage.setScene(new Scene(pane));
+        return dialogStage;
+    }
+
+    /**
+     * Rebuild the table of stages and counters from the current metrics
+     */
+    private void refresh() {
+        grid.getChildren().clear();
+        String[] headers = { "Stage", "Count", "Mean (ms)", "p50 (ms)", "p95 (ms)", "Max (ms)" };
+        for (int col = 0; col < headers.length; col++) {
+            Label header = new Label(headers[col]);
+            header.setStyle("-fx-font-weight: bold;");
+            grid.add(header, col, 0);
+        }
+        int row = 1;
+        for (qupath.ext.serverkit.metrics.Stage runStage : qupath.ext.serverkit.metrics.Stage.values()) {
+            LatencyHistogram.Snapshot snapshot = metrics.getSnapshot(runStage);
+            grid.add(new Label(runStage.getLabel()), 0, row);
+            grid.add(new Label(Long.toString(snapshot.count())), 1, row);
+            grid.add(new Label(formatMs(snapshot.meanMs())), 2, row);
+            grid.add(new Label(formatMs(snapshot.quantileMs(0.5))), 3, row);
+            grid.add(new Label(formatMs(snapshot.quantileMs(0.95))), 4, row);
+            grid.add(new Label(formatMs(snapshot.maxMs())), 5, row);
+            row++;
+        }
+        row++;
+        for (Map.Entry<String, Long> entry : metrics.getCounters().entrySet()) {
+            grid.add(new Label(entry.getKey().replace('_', ' ')), 0, row);
+            grid.add(new Label(Long.toString(entry.getValue())), 1, row);
+            row++;
+        }
+    }
+
+    /**
+     * Prompt for a file and write the metrics to it
+     *
+     * @param description
+     * @param extension
+     * @param defaultName
+     * @param prometheus true to use the Prometheus text format, false for CSV
+     */
+    private void export(String description, String extension, String defaultName, boolean prometheus) {
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Export metrics");
+        chooser.setInitialFileName(defaultName);
+        chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter(description, extension));
+        File file = chooser.showSaveDialog(stage);
+        if (file == null)
+            return;
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            if (prometheus)
+                metrics.writePrometheus(writer);
+            else
+                metrics.writeCsv(writer);
+            logger.info("Exported metrics to {}", file);
+        } catch (IOException e) {
+            logger.error("Failed to export metrics", e);
+            Dialogs.showErrorMessage("Export metrics", "Could not write " + file + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    private static String formatMs(double ms) {
+        return Double.isNaN(ms) ? "-" : String.format(Locale.ROOT, "%.1f", ms);
+    }
+}
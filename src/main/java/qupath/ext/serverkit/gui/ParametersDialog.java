@@ -15,6 +15,7 @@ import javafx.geometry.Insets;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
 import javafx.scene.control.ScrollPane;
+import javafx.scene.control.ToggleButton;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
@@ -26,10 +27,12 @@ import qupath.lib.plugins.parameters.ParameterList;
 public class ParametersDialog extends ParameterPanelFX {
     private final static Logger logger = LoggerFactory.getLogger(ParametersDialog.class);
     private final Button btnRun = new Button("Run");
+    private final ToggleButton btnLive = new ToggleButton("Live mode");
     // private final Button btnSampleImages = new Button("Sample image(s)");
     private final QuPathGUI qupath;
     private final String algoName;
     private final ParameterList parameterList;
+    private LiveInferenceMode liveMode;
 
     public ParametersDialog(QuPathGUI qupath, String algoName, ParameterList parameterList) {
         super(parameterList);
@@ -41,6 +44,7 @@ public class ParametersDialog extends ParameterPanelFX {
         if (qupath != null)
             dialog.initOwner(qupath.getStage());
         dialog.setTitle(algoName);
+        dialog.setOnHidden(e -> btnLive.setSelected(false));
         btnRun.requestFocus();
         dialog.show();
     }
@@ -106,11 +110,21 @@ public class ParametersDialog extends ParameterPanelFX {
         btnRun.setPadding(new Insets(5, 5, 5, 5));
         pane.setBottom(btnRun);
 
+        // Create the "Live mode" button => Runs the algorithm on the visible tiles while panning
+        btnLive.setMaxWidth(Double.MAX_VALUE);
+        btnLive.setPadding(new Insets(5, 5, 5, 5));
+        btnLive.selectedProperty().addListener((v, o, n) -> handleLiveModeToggled(n));
+        this.addParameterChangeListener((params, key, isAdjusting) -> {
+            if (liveMode != null && !isAdjusting)
+                liveMode.parametersChanged();
+        });
+
         // VBox to hold the Documentation and Sample Images buttons
         VBox topButtons = new VBox();
         topButtons.setSpacing(5);
         topButtons.setPadding(new Insets(5, 5, 5, 5));
         // topButtons.getChildren().addAll(btnDocumentation, btnSampleImages);
+        topButtons.getChildren().add(btnLive);
         pane.setTop(topButtons);
 
         this.getPane().setMaxSize(Double.MAX_VALUE, Double.MAX_VALUE);
@@ -147,6 +161,34 @@ public class ParametersDialog extends ParameterPanelFX {
         }
     }
 
+    /**
+     * Start or stop running the algorithm on the tiles visible in the current viewer
+     *
+     * @param selected
+     */
+    private void handleLiveModeToggled(boolean selected) {
+        if (!selected) {
+            if (liveMode != null)
+                liveMode.stop();
+            return;
+        }
+        if (qupath == null || qupath.getViewer() == null || qupath.getViewer().getImageData() == null) {
+            btnLive.setSelected(false);
+            return;
+        }
+        try {
+            if (liveMode == null) {
+                liveMode = new LiveInferenceMode(qupath.getViewer(), algoName, parameterList);
+                // The viewer can stop the live mode, e.g. when another image is opened
+                liveMode.setOnStopped(() -> btnLive.setSelected(false));
+            }
+            liveMode.start();
+        } catch (IOException e) {
+            logger.error("Could not start the live mode: {}", e.getLocalizedMessage());
+            btnLive.setSelected(false);
+        }
+    }
+
     // public void handleSampleImageDownload(ActionEvent event) {
     //     if (event.getSource() == btnSampleImages) {
     //         btnSampleImages.setDisable(true);
@@ -2,8 +2,13 @@ package qupath.ext.serverkit.gui;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,24 +17,49 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
+import javafx.application.Platform;
+import javafx.beans.property.StringProperty;
+import javafx.scene.control.ComboBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.Menu;
 import javafx.scene.control.MenuItem;
-import javafx.scene.control.TextField;
 import javafx.scene.layout.GridPane;
 import qupath.ext.serverkit.client.Client;
 import qupath.fx.dialogs.Dialogs;
 import qupath.fx.utils.GridPaneUtils;
 import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.gui.tools.MenuTools;
 import qupath.lib.plugins.parameters.ParameterList;
 
 public class ServerKitUI {
     private final static Logger logger = LoggerFactory.getLogger(ServerKitUI.class);
+
+    // URLs of the servers connected to successfully, most recent first, one per line
+    private static final StringProperty recentServers = PathPrefs.createPersistentPreference("serverkit.recentServers", "");
+    private static final int MAX_RECENT_SERVERS = 5;
+
     private final QuPathGUI qupath;
     private final String extName;
     private final String extMenuName;
-    private TextField URLtextField;
+    private ComboBox<String> URLComboBox;
+
+    // Connections to the servers and the fetching of their algorithms, run one at a time off the JavaFX thread
+    private final ExecutorService connectionExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "serverkit-connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Requests for the algorithms selected in the menu, not queued behind the connections
+    private final ExecutorService algoExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "serverkit-algo");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Parameters of the algorithms of the server, fetched when connecting
+    private final Map<String, JsonObject> parametersByAlgo = new ConcurrentHashMap<>();
 
     public ServerKitUI(QuPathGUI qupath, String name, String extMenuName) {
         super();
@@ -49,18 +79,120 @@ public class ServerKitUI {
         gp.setVgap(5.0);
         Label URLLabel = new Label("Enter the algorithm server URL");
         GridPaneUtils.addGridRow(gp, 0, 0, null, URLLabel);
-        URLtextField = new TextField(Client.defaultUrl);
-        GridPaneUtils.addGridRow(gp, 1, 0, "By default: " + Client.defaultUrl, URLtextField);
+        List<String> recent = getRecentServers();
+        URLComboBox = new ComboBox<>();
+        URLComboBox.setEditable(true);
+        URLComboBox.getItems().setAll(recent);
+        URLComboBox.setValue(recent.isEmpty() ? Client.defaultUrl : recent.get(0));
+        URLComboBox.setMaxWidth(Double.MAX_VALUE);
+        GridPaneUtils.addGridRow(gp, 1, 0, "By default: " + Client.defaultUrl, URLComboBox);
         return gp;
     }
 
     /**
-     * Add a menu item for connecting to the server
+     * Connect in the background to the most recent server that answers, among those
+     * connected to in previous sessions, and add its algorithms to the menu
+     */
+    public void connectToRecentServers() {
+        List<String> recent = getRecentServers();
+        if (!recent.isEmpty())
+            connect(recent, false);
+    }
+
+    /**
+     * @return the URLs of the servers connected to successfully, most recent first
+     */
+    private static List<String> getRecentServers() {
+        return recentServers.get().lines().map(String::trim).filter(url -> !url.isEmpty()).toList();
+    }
+
+    private static void addRecentServer(String serverURL) {
+        List<String> recent = new ArrayList<>(getRecentServers());
+        recent.remove(serverURL);
+        recent.add(0, serverURL);
+        recentServers.set(String.join("\n", recent.subList(0, Math.min(recent.size(), MAX_RECENT_SERVERS))));
+    }
+
+    /**
+     * Connect to the first server that answers, then fetch its algorithms and their
+     * parameters, without blocking the JavaFX thread. The menu is updated once the list of
+     * algorithms is received.
+     *
+     * @param serverURLs URLs to try in order
+     * @param notifyErrors if true, errors are shown to the user, otherwise only logged
+     */
+    private void connect(List<String> serverURLs, boolean notifyErrors) {
+        connectionExecutor.execute(() -> {
+            Client client = Client.getInstance();
+            for (String serverURL : serverURLs) {
+                try {
+                    client.launchHttpClient(serverURL);
+                } catch (MalformedURLException urlException) {
+                    logger.error("Invalid URL: {}", serverURL);
+                    if (notifyErrors)
+                        Platform.runLater(() -> Dialogs.showErrorMessage("Algorithm server", "Invalid URL: " + serverURL));
+                    continue;
+                } catch (IOException ioException) {
+                    String ioErrMessage = "Could not connect to server on " + serverURL
+                            + (ioException.getMessage() == null ? "" : ": " + ioException.getLocalizedMessage());
+                    logger.error(ioErrMessage);
+                    if (notifyErrors)
+                        Platform.runLater(() -> Dialogs.showErrorNotification(extName, ioErrMessage));
+                    continue;
+                }
+                String successMessage = "Successfully connected to server on " + client.getServerURL().toString();
+                logger.info(successMessage);
+                Platform.runLater(() -> {
+                    addRecentServer(serverURL);
+                    Dialogs.showInfoNotification(extName, successMessage);
+                });
+                fetchAlgos();
+                return;
+            }
+            Platform.runLater(this::clearAlgos);
+        });
+    }
+
+    /**
+     * Get the available algorithms from the server and add them as menu items, then fetch
+     * their parameters so that they are ready when an algorithm is selected. Runs off the
+     * JavaFX thread.
+     */
+    private void fetchAlgos() {
+        Client client = Client.getInstance();
+        parametersByAlgo.clear();
+        String[] availableAlgorithms;
+        try {
+            availableAlgorithms = client.getAlgos();
+        } catch (IOException | InterruptedException algoExc) {
+            String errMessage = "Could not retrieve algorithms from the server";
+            logger.error(errMessage);
+            Platform.runLater(() -> {
+                clearAlgos();
+                Dialogs.showErrorNotification(extName, errMessage);
+            });
+            return;
+        }
+        Platform.runLater(() -> addAvailableAlgos(availableAlgorithms));
+        for (String algoName : availableAlgorithms) {
+            try {
+                parametersByAlgo.put(algoName, client.getParameters(algoName));
+            } catch (Exception e) {
+                // Fetched again when the algorithm is selected
+                logger.warn("Could not retrieve the parameters of {}: {}", algoName, e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Add menu items for connecting to the server and showing the performance metrics
      */
     public void addConnectionMenuItem() {
         Menu algosMenu = qupath.getMenu(extMenuName, true);
         MenuItem connectionMenuItem = new MenuItem("Connect...");
-        MenuTools.addMenuItems(algosMenu, connectionMenuItem);
+        MenuItem metricsMenuItem = new MenuItem("Performance...");
+        metricsMenuItem.setOnAction(e -> new MetricsPane(qupath).show());
+        MenuTools.addMenuItems(algosMenu, connectionMenuItem, metricsMenuItem, null);
         this.setOnConnect(connectionMenuItem);
     }
 
@@ -75,36 +207,10 @@ public class ServerKitUI {
             boolean confirm = Dialogs.showConfirmDialog("Server URL", gp);
             if (!confirm)
                 return;
-            String serverURL = URLtextField.getText();
-            if (serverURL == null || serverURL.isEmpty())
-                return;
-
-            Client client = Client.getInstance();
-            try {
-                client.launchHttpClient(serverURL);
-                String successMessage = "Successfully connected to server on " + client.getServerURL().toString();
-                logger.info(successMessage);
-                Dialogs.showInfoNotification(extName, successMessage);
-            } catch (MalformedURLException urlException) {
-                Dialogs.showErrorMessage("Algorithm server", "Invalid URL: " + serverURL);
-                clearAlgos();
-                return;
-            } catch (IOException ioException) {
-                String ioErrMessage = "Could not connect to server on " + client.getServerURL().toString();
-                logger.error(ioErrMessage);
-                Dialogs.showErrorNotification(extName, ioErrMessage);
-                clearAlgos();
+            String serverURL = URLComboBox.getEditor().getText();
+            if (serverURL == null || serverURL.isBlank())
                 return;
-            }
-
-            // Get the available algorithms from the server and add them as menu items
-            try {
-                this.addAvailableAlgos();
-            } catch (IOException | InterruptedException algoExc) {
-                String errMessage = "Could not retrieve algorithms from the server";
-                logger.error(errMessage);
-                Dialogs.showErrorNotification(extName, errMessage);
-            }
+            connect(List.of(serverURL.trim()), true);
         });
     }
 
@@ -118,21 +224,12 @@ public class ServerKitUI {
     }
 
     /**
-     * Query the available algorithms from the server & add them as menu items
+     * Add the available algorithms as menu items
      *
-     * @throws IOException
-     * @throws InterruptedException
+     * @param availableAlgorithms
      */
-    private void addAvailableAlgos() throws IOException, InterruptedException {
+    private void addAvailableAlgos(String[] availableAlgorithms) {
         clearAlgos();
-        Client client = Client.getInstance();
-        if (!client.isConnected()) {
-            String ioErrMessage = "Could not connect to server on " + client.getServerURL().toString();
-            logger.error(ioErrMessage);
-            Dialogs.showErrorNotification(extName, ioErrMessage);
-            return;
-        }
-        String[] availableAlgorithms = client.getAlgos();
         if (availableAlgorithms.length == 0) {
             logger.warn("No algorithms available on the server");
         } else {
@@ -155,82 +252,99 @@ public class ServerKitUI {
      * @param algoName
      */
     public void setOnAlgo(MenuItem mi, String algoName) {
-        mi.setOnAction(ae -> {
-            Client client = Client.getInstance();
-            if (!client.isConnected()) {
-                logger.error("Could not connect to server on {}", client.getServerURL());
-                return;
+        mi.setOnAction(ae -> algoExecutor.execute(() -> {
+            // Get algorithm parameters from the given algoName, unless fetched when connecting
+            JsonObject parametersJson = parametersByAlgo.get(algoName);
+            if (parametersJson == null) {
+                try {
+                    parametersJson = Client.getInstance().getParameters(algoName);
+                    parametersByAlgo.put(algoName, parametersJson);
+                } catch (Exception e) {
+                    logger.error("Could not retrieve the parameters of {} from {}: {}", algoName,
+                            Client.getInstance().getServerURL(), e.getLocalizedMessage());
+                    return;
+                }
             }
-            try {
-                // Get algorithm parameters from the given algoName
-                JsonObject parametersJson = client.getParameters(algoName);
+            JsonObject parameters = parametersJson;
+            Platform.runLater(() -> showAlgo(algoName, parameters));
+        }));
+    }
 
-                if (parametersJson == null || parametersJson.isEmpty()) {
-                    // Run the algo directly
-                    logger.info("Running {}...", algoName);
+    /**
+     * Run an algorithm without parameters, or show the dialog to set its parameters
+     *
+     * @param algoName
+     * @param parametersJson
+     */
+    private void showAlgo(String algoName, JsonObject parametersJson) {
+        try {
+            if (parametersJson == null || parametersJson.isEmpty()) {
+                // Run the algo directly
+                logger.info("Running {}...", algoName);
+                new Thread(() -> {
                     try {
-                        client.run(qupath, qupath.getViewer(), algoName, null);
+                        Client.getInstance().run(qupath, qupath.getViewer(), algoName, null);
                     } catch (Exception e) {
                         logger.error(e.getLocalizedMessage());
                     }
-                } else {
-                    ParameterList parameterList = new ParameterList();
-
-                    for (Map.Entry<String, JsonElement> entry : parametersJson.entrySet()) {
-                        String key = entry.getKey();
-                        JsonObject parameterValues = entry.getValue().getAsJsonObject();
-                        String paramName = parameterValues.get("title").getAsString();
-                        String description = parameterValues.get("description") != null
-                                ? parameterValues.get("description").getAsString()
-                                : null;
-                        JsonElement defaultValue = parameterValues.get("default") != null
-                                ? parameterValues.get("default")
-                                : null;
-
-                        switch (parameterValues.get("param_type").getAsString()) {
-                            case "bool":
-                                String hintedKeyBool = key + "-" + "bool";
-                                parameterList.addBooleanParameter(hintedKeyBool, paramName, defaultValue.getAsBoolean(),
-                                        description);
-                                break;
-                            case "int":
-                                String hintedKeyInt = key + "-" + "int";
-                                parameterList.addIntParameter(hintedKeyInt, paramName, defaultValue.getAsInt(), null, description);
-                                break;
-                            case "float":
-                                String hintedKeyFloat = key + "-" + "float";
-                                parameterList.addDoubleParameter(hintedKeyFloat, paramName, defaultValue.getAsDouble(), null,
-                                        description);
-                                break;
-                            case "str":
-                                String hintedKeyString = key + "-" + "str";
-                                parameterList.addStringParameter(hintedKeyString, paramName, defaultValue.getAsString(), description);
-                                break;
-                            case "choice":
-                                String hintedKeyChoice = key + "-" + "choice";
-                                String[] choices;
-                                if (parameterValues.has("enum")) {
-                                    JsonArray choicesArray = parameterValues.get("enum").getAsJsonArray();
-                                    choices = new String[choicesArray.size()];
-                                    for (int i = 0; i < choicesArray.size(); i++) {
-                                        choices[i] = choicesArray.get(i).getAsString();
-                                    }
-                                } else if (parameterValues.has("const")) {
-                                    choices = new String[] { parameterValues.get("const").getAsString() };
-                                } else {
-                                    throw new IllegalArgumentException("Dropdown parameter must have either 'enum' or 'const'");
+                }).start();
+            } else {
+                ParameterList parameterList = new ParameterList();
+
+                for (Map.Entry<String, JsonElement> entry : parametersJson.entrySet()) {
+                    String key = entry.getKey();
+                    JsonObject parameterValues = entry.getValue().getAsJsonObject();
+                    String paramName = parameterValues.get("title").getAsString();
+                    String description = parameterValues.get("description") != null
+                            ? parameterValues.get("description").getAsString()
+                            : null;
+                    JsonElement defaultValue = parameterValues.get("default") != null
+                            ? parameterValues.get("default")
+                            : null;
+
+                    switch (parameterValues.get("param_type").getAsString()) {
+                        case "bool":
+                            String hintedKeyBool = key + "-" + "bool";
+                            parameterList.addBooleanParameter(hintedKeyBool, paramName, defaultValue.getAsBoolean(),
+                                    description);
+                            break;
+                        case "int":
+                            String hintedKeyInt = key + "-" + "int";
+                            parameterList.addIntParameter(hintedKeyInt, paramName, defaultValue.getAsInt(), null, description);
+                            break;
+                        case "float":
+                            String hintedKeyFloat = key + "-" + "float";
+                            parameterList.addDoubleParameter(hintedKeyFloat, paramName, defaultValue.getAsDouble(), null,
+                                    description);
+                            break;
+                        case "str":
+                            String hintedKeyString = key + "-" + "str";
+                            parameterList.addStringParameter(hintedKeyString, paramName, defaultValue.getAsString(), description);
+                            break;
+                        case "choice":
+                            String hintedKeyChoice = key + "-" + "choice";
+                            String[] choices;
+                            if (parameterValues.has("enum")) {
+                                JsonArray choicesArray = parameterValues.get("enum").getAsJsonArray();
+                                choices = new String[choicesArray.size()];
+                                for (int i = 0; i < choicesArray.size(); i++) {
+                                    choices[i] = choicesArray.get(i).getAsString();
                                 }
-                                parameterList.addChoiceParameter(hintedKeyChoice, paramName, choices[0],
-                                        Arrays.stream(choices).toList(), description);
-                                break;
-                        }
+                            } else if (parameterValues.has("const")) {
+                                choices = new String[] { parameterValues.get("const").getAsString() };
+                            } else {
+                                throw new IllegalArgumentException("Dropdown parameter must have either 'enum' or 'const'");
+                            }
+                            parameterList.addChoiceParameter(hintedKeyChoice, paramName, choices[0],
+                                    Arrays.stream(choices).toList(), description);
+                            break;
                     }
-
-                    ParametersDialog parametersDialog = new ParametersDialog(qupath, algoName, parameterList);
                 }
-            } catch (Exception exception) {
-                logger.error(exception.getLocalizedMessage());
+
+                ParametersDialog parametersDialog = new ParametersDialog(qupath, algoName, parameterList);
             }
-        });
+        } catch (Exception exception) {
+            logger.error(exception.getLocalizedMessage());
+        }
     }
 }
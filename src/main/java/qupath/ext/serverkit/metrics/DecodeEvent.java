@@ -0,0 +1,18 @@
+package qupath.ext.serverkit.metrics;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Emitted around the decoding of one result of the server response into objects
+ */
+@Name("qupath.serverkit.Decode")
+@Label("Response Decoding")
+public class DecodeEvent extends ServerKitEvent {
+
+    @Label("Result Kind")
+    public String kind;
+
+    @Label("Object Count")
+    public int objectCount;
+}
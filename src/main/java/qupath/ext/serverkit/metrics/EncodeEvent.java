@@ -0,0 +1,21 @@
+package qupath.ext.serverkit.metrics;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Emitted around the serialization of the image and parameters into the request body
+ */
+@Name("qupath.serverkit.Encode")
+@Label("Request Encoding")
+public class EncodeEvent extends ServerKitEvent {
+
+    @Label("Image Bytes")
+    @DataAmount
+    public long imageBytes;
+
+    @Label("Body Bytes")
+    @DataAmount
+    public long bodyBytes;
+}
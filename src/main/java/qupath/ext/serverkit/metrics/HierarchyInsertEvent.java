@@ -0,0 +1,15 @@
+package qupath.ext.serverkit.metrics;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Emitted around the insertion of decoded objects into the object hierarchy
+ */
+@Name("qupath.serverkit.HierarchyInsert")
+@Label("Hierarchy Insertion")
+public class HierarchyInsertEvent extends ServerKitEvent {
+
+    @Label("Object Count")
+    public int objectCount;
+}
@@ -0,0 +1,88 @@
+package qupath.ext.serverkit.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread-safe latency histogram with fixed bucket boundaries (in milliseconds)
+ */
+public class LatencyHistogram {
+
+    // Upper bounds of the buckets in milliseconds, the last bucket is unbounded
+    static final double[] BUCKET_BOUNDS_MS = {
+            1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000
+    };
+
+    private final long[] bucketCounts = new long[BUCKET_BOUNDS_MS.length + 1];
+    private long count;
+    private double sumMs;
+    private double minMs = Double.NaN;
+    private double maxMs = Double.NaN;
+
+    /**
+     * Record a single observation
+     *
+     * @param nanos duration in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        double ms = nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        int i = 0;
+        while (i < BUCKET_BOUNDS_MS.length && ms > BUCKET_BOUNDS_MS[i])
+            i++;
+        bucketCounts[i]++;
+        count++;
+        sumMs += ms;
+        minMs = Double.isNaN(minMs) ? ms : Math.min(minMs, ms);
+        maxMs = Double.isNaN(maxMs) ? ms : Math.max(maxMs, ms);
+    }
+
+    /**
+     * Clear all the recorded observations
+     */
+    public synchronized void reset() {
+        Arrays.fill(bucketCounts, 0);
+        count = 0;
+        sumMs = 0;
+        minMs = Double.NaN;
+        maxMs = Double.NaN;
+    }
+
+    /**
+     * @return an immutable copy of the current state of the histogram
+     */
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(bucketCounts.clone(), count, sumMs, minMs, maxMs);
+    }
+
+    /**
+     * Point-in-time view of a {@link LatencyHistogram}
+     */
+    public record Snapshot(long[] bucketCounts, long count, double sumMs, double minMs, double maxMs) {
+
+        public double meanMs() {
+            return count == 0 ? Double.NaN : sumMs / count;
+        }
+
+        /**
+         * Estimate a quantile as the upper bound of the bucket that contains it
+         * (clamped to the observed maximum)
+         *
+         * @param q quantile between 0 and 1
+         * @return the estimated value in milliseconds, or NaN if nothing was recorded
+         */
+        public double quantileMs(double q) {
+            if (count == 0)
+                return Double.NaN;
+            long rank = (long) Math.ceil(q * count);
+            long cumulative = 0;
+            for (int i = 0; i < bucketCounts.length; i++) {
+                cumulative += bucketCounts[i];
+                if (cumulative >= rank && cumulative > 0) {
+                    double bound = i < BUCKET_BOUNDS_MS.length ? BUCKET_BOUNDS_MS[i] : maxMs;
+                    return Math.min(bound, maxMs);
+                }
+            }
+            return maxMs;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package qupath.ext.serverkit.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects per-stage latency histograms and byte/object counters for the runs
+ * sent to the algorithm server
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry instance = new MetricsRegistry();
+
+    private final Map<Stage, LatencyHistogram> histograms = new EnumMap<>(Stage.class);
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder failedRuns = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder objects = new LongAdder();
+    private final LongAdder coalescedRequests = new LongAdder();
+
+    private MetricsRegistry() {
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new LatencyHistogram());
+        }
+    }
+
+    public static MetricsRegistry getInstance() {
+        return instance;
+    }
+
+    /**
+     * Record the time elapsed in a stage
+     *
+     * @param stage
+     * @param startNanos value of {@link System#nanoTime()} when the stage started
+     */
+    public void recordSince(Stage stage, long startNanos) {
+        record(stage, System.nanoTime() - startNanos);
+    }
+
+    public void record(Stage stage, long nanos) {
+        histograms.get(stage).record(nanos);
+    }
+
+    public void incrementRuns() {
+        runs.increment();
+    }
+
+    public void incrementFailedRuns() {
+        failedRuns.increment();
+    }
+
+    public void addBytesSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    public void addBytesReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    public void addObjects(long count) {
+        objects.add(count);
+    }
+
+    /**
+     * Count a tile whose result was shared with an identical request already in flight
+     */
+    public void incrementCoalescedRequests() {
+        coalescedRequests.increment();
+    }
+
+    public LatencyHistogram.Snapshot getSnapshot(Stage stage) {
+        return histograms.get(stage).snapshot();
+    }
+
+    /**
+     * @return the counters by name, in export order
+     */
+    public Map<String, Long> getCounters() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        counters.put("runs", runs.sum());
+        counters.put("failed_runs", failedRuns.sum());
+        counters.put("bytes_sent", bytesSent.sum());
+        counters.put("bytes_received", bytesReceived.sum());
+        counters.put("objects", objects.sum());
+        counters.put("coalesced_requests", coalescedRequests.sum());
+        return counters;
+    }
+
+    /**
+     * Clear all histograms and counters
+     */
+    public void reset() {
+        histograms.values().forEach(LatencyHistogram::reset);
+        runs.reset();
+        failedRuns.reset();
+        bytesSent.reset();
+        bytesReceived.reset();
+        objects.reset();
+        coalescedRequests.reset();
+    }
+
+    /**
+     * Write a summary of each stage followed by the counters as CSV
+     *
+     * @param writer
+     * @throws IOException
+     */
+    public void writeCsv(Writer writer) throws IOException {
+        writer.write("stage,count,mean_ms,p50_ms,p95_ms,min_ms,max_ms,sum_ms\n");
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram.Snapshot snapshot = getSnapshot(stage);
+            writer.write(String.format(Locale.ROOT, "%s,%d,%s,%s,%s,%s,%s,%s\n",
+                    stage.getKey(), snapshot.count(),
+                    formatMs(snapshot.meanMs()), formatMs(snapshot.quantileMs(0.5)),
+                    formatMs(snapshot.quantileMs(0.95)), formatMs(snapshot.minMs()),
+                    formatMs(snapshot.maxMs()), formatMs(snapshot.sumMs())));
+        }
+        writer.write("\ncounter,value\n");
+        for (Map.Entry<String, Long> entry : getCounters().entrySet()) {
+            writer.write(entry.getKey() + "," + entry.getValue() + "\n");
+        }
+    }
+
+    /**
+     * Write all histograms and counters in the Prometheus text exposition format
+     *
+     * @param writer
+     * @throws IOException
+     */
+    public void writePrometheus(Writer writer) throws IOException {
+        String name = "serverkit_stage_duration_seconds";
+        writer.write("# HELP " + name + " Time spent in each stage of a run.\n");
+        writer.write("# TYPE " + name + " histogram\n");
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram.Snapshot snapshot = getSnapshot(stage);
+            String label = "stage=\"" + stage.getKey() + "\"";
+            long cumulative = 0;
+            for (int i = 0; i < LatencyHistogram.BUCKET_BOUNDS_MS.length; i++) {
+                cumulative += snapshot.bucketCounts()[i];
+                writer.write(String.format(Locale.ROOT, "%s_bucket{%s,le=\"%s\"} %d\n",
+                        name, label, LatencyHistogram.BUCKET_BOUNDS_MS[i] / 1000.0, cumulative));
+            }
+            writer.write(String.format(Locale.ROOT, "%s_bucket{%s,le=\"+Inf\"} %d\n", name, label, snapshot.count()));
+            writer.write(String.format(Locale.ROOT, "%s_sum{%s} %s\n", name, label, snapshot.sumMs() / 1000.0));
+            writer.write(String.format(Locale.ROOT, "%s_count{%s} %d\n", name, label, snapshot.count()));
+        }
+        for (Map.Entry<String, Long> entry : getCounters().entrySet()) {
+            String counterName = "serverkit_" + entry.getKey() + "_total";
+            writer.write("# TYPE " + counterName + " counter\n");
+            writer.write(counterName + " " + entry.getValue() + "\n");
+        }
+    }
+
+    private static String formatMs(double ms) {
+        return Double.isNaN(ms) ? "" : String.format(Locale.ROOT, "%.3f", ms);
+    }
+}
@@ -0,0 +1,28 @@
+package qupath.ext.serverkit.metrics;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Emitted around the call to the {@code /process} endpoint of the server, until
+ * its response body has been downloaded and parsed
+ */
+@Name("qupath.serverkit.ProcessRequest")
+@Label("Process Request")
+public class ProcessRequestEvent extends ServerKitEvent {
+
+    @Label("Bytes Sent")
+    @Description("Size of the request body on the wire, after compression")
+    @DataAmount
+    public long bytesSent;
+
+    @Label("Bytes Received")
+    @Description("Size of the response body on the wire, before decompression")
+    @DataAmount
+    public long bytesReceived;
+
+    @Label("Status Code")
+    public int statusCode;
+}
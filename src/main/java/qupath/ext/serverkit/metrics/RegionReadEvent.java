@@ -0,0 +1,12 @@
+package qupath.ext.serverkit.metrics;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Emitted around the read of the pixels of a region from the {@link qupath.lib.images.servers.ImageServer}
+ */
+@Name("qupath.serverkit.RegionRead")
+@Label("Region Read")
+public class RegionReadEvent extends ServerKitEvent {
+}
@@ -0,0 +1,60 @@
+package qupath.ext.serverkit.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Base class of the Java Flight Recorder events emitted around the stages of a run.
+ * <p>
+ * Events are cheap to create when recording is off: callers should only fill
+ * the fields once {@link #shouldCommit()} returns true.
+ */
+@Category({ "QuPath", "Imaging Server Kit" })
+@StackTrace(false)
+public abstract class ServerKitEvent extends Event {
+
+    @Label("Algorithm")
+    String algorithm;
+
+    @Label("Tile Index")
+    @Description("Index of the tile within the run, 0 when the region is processed in one piece")
+    int tileIndex;
+
+    @Label("Region X")
+    int regionX;
+
+    @Label("Region Y")
+    int regionY;
+
+    @Label("Region Width")
+    int regionWidth;
+
+    @Label("Region Height")
+    int regionHeight;
+
+    @Label("Downsample")
+    double downsample;
+
+    /**
+     * Set the fields describing the region being processed
+     *
+     * @param algoName
+     * @param region
+     * @param tileIndex
+     */
+    public void setRegion(String algoName, RegionRequest region, int tileIndex) {
+        this.algorithm = algoName;
+        this.tileIndex = tileIndex;
+        if (region != null) {
+            this.regionX = region.getX();
+            this.regionY = region.getY();
+            this.regionWidth = region.getWidth();
+            this.regionHeight = region.getHeight();
+            this.downsample = region.getDownsample();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package qupath.ext.serverkit.metrics;
+
+/**
+ * The stages of a {@link qupath.ext.serverkit.client.Client} run whose latency is recorded
+ */
+public enum Stage {
+    READ_REGION("read_region", "Read region"),
+    ENCODE("encode", "Encode request"),
+    UPLOAD("upload", "Upload"),
+    SERVER("server", "Server compute"),
+    DOWNLOAD("download", "Download"),
+    PARSE("parse", "Parse response"),
+    DISPLAY("display", "Display results"),
+    TOTAL("total", "Total run");
+
+    private final String key;
+    private final String label;
+
+    Stage(String key, String label) {
+        this.key = key;
+        this.label = label;
+    }
+
+    /**
+     * @return the identifier used in exported metrics
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return a human-readable name for the stage
+     */
+    public String getLabel() {
+        return label;
+    }
+}
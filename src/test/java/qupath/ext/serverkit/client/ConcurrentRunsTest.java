@@ -0,0 +1,123 @@
+package qupath.ext.serverkit.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonArray;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Runs on the same region at the same time, sharing the results of their tiles, with a memory
+ * budget that only fits a few tiles
+ */
+class ConcurrentRunsTest {
+
+    private static final int IMAGE_SIZE = 2048;
+    private static final int TILE_SIZE = 256;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private long maxBytes;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        serverExecutor = Executors.newFixedThreadPool(4);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(serverExecutor);
+        server.createContext("/", exchange -> respond(exchange, 200, "{}"));
+        server.createContext("/test/process", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            try {
+                // Slow enough for the tiles of both runs to be in flight at the same time
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, 201, "[]");
+        });
+        server.start();
+        Client.getInstance().launchHttpClient("http://" + server.getAddress().getAddress().getHostAddress()
+                + ":" + server.getAddress().getPort());
+
+        PipelineSettings settings = Client.getInstance().getPipelineSettings();
+        settings.setAdaptive(false);
+        settings.setTileSize(TILE_SIZE);
+        settings.setTileOverlap(0);
+        settings.setReadThreads(2);
+        settings.setReadAhead(8);
+        settings.setRequestThreads(2);
+        maxBytes = MemoryBudget.getInstance().getMaxBytes();
+    }
+
+    @AfterEach
+    void stopServer() {
+        Client.getInstance().reset();
+        MemoryBudget.getInstance().setMaxBytes(maxBytes);
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    void testRunsSharingTilesDoNotWaitForEachOther() throws Exception {
+        ImageServer<BufferedImage> imageServer = new WrappedBufferedImageServer("test",
+                new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_INT_RGB));
+        RegionRequest region = RegionRequest.createInstance(imageServer.getPath(), 1.0, 0, 0,
+                IMAGE_SIZE, IMAGE_SIZE, 0, 0);
+        // The regions read ahead by one run are enough to fill the budget
+        long tileBytes = MemoryBudget.estimateBytes(imageServer,
+                RegionRequest.createInstance(imageServer.getPath(), 1.0, 0, 0, TILE_SIZE, TILE_SIZE, 0, 0));
+        MemoryBudget.getInstance().setMaxBytes(4 * tileBytes);
+
+        ExecutorService runs = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                futures.add(runs.submit(() -> {
+                    Set<Integer> tiles = ConcurrentHashMap.newKeySet();
+                    Client.getInstance().processRegion(imageServer, region, null, "test", new JsonArray(),
+                            message -> {}, task -> tiles.add(task.index));
+                    return tiles.size();
+                }));
+            }
+            int nTiles = (IMAGE_SIZE / TILE_SIZE) * (IMAGE_SIZE / TILE_SIZE);
+            for (Future<Integer> future : futures) {
+                assertEquals(nTiles, (int) future.get(60, TimeUnit.SECONDS));
+            }
+        } finally {
+            runs.shutdownNow();
+        }
+        assertEquals(0L, MemoryBudget.getInstance().getInFlightBytes());
+    }
+
+    private static void respond(HttpExchange exchange, int statusCode, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        try (OutputStream stream = exchange.getResponseBody()) {
+            stream.write(bytes);
+        }
+    }
+}
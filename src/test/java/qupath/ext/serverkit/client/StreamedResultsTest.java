@@ -0,0 +1,137 @@
+package qupath.ext.serverkit.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonArray;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Processes a single tile with a local stand-in for the server, answering /test/process with a
+ * fixed response
+ */
+class StreamedResultsTest {
+
+    private static final String POINT = """
+            {"kind": "points", "meta": {}, "data": [{"geometry": {"coordinates": [[10, 20]]}}]}""";
+
+    private HttpServer server;
+    private String contentType;
+    private String responseBody;
+    private String acceptHeader;
+
+    // Received by the sink
+    private final List<PathObject> objects = new ArrayList<>();
+    private final List<Boolean> streamed = new ArrayList<>();
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> respond(exchange, 200, "application/json", "{}"));
+        server.createContext("/test/process", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            acceptHeader = exchange.getRequestHeaders().getFirst("Accept");
+            respond(exchange, 201, contentType, responseBody);
+        });
+        server.start();
+        Client.getInstance().launchHttpClient("http://" + server.getAddress().getAddress().getHostAddress()
+                + ":" + server.getAddress().getPort());
+    }
+
+    @AfterEach
+    void stopServer() {
+        Client.getInstance().reset();
+        server.stop(0);
+    }
+
+    @Test
+    void testNdjsonResultsAreAddedWithTheirTile() throws Exception {
+        contentType = Client.NDJSON_MEDIA_TYPE;
+        responseBody = POINT + "\n" + """
+                {"progress": 0.5}
+
+                """ + POINT + "\n";
+        processTile();
+
+        assertTrue(acceptHeader.startsWith(Client.NDJSON_MEDIA_TYPE));
+        assertEquals(List.of(true), streamed);
+        assertEquals(2, objects.size());
+    }
+
+    @Test
+    void testNdjsonLinesCanHoldArraysOfResults() throws Exception {
+        contentType = Client.NDJSON_MEDIA_TYPE + "; charset=utf-8";
+        responseBody = "[" + POINT + ", " + POINT + "]\n" + POINT + "\n";
+        processTile();
+
+        assertEquals(List.of(true), streamed);
+        assertEquals(3, objects.size());
+    }
+
+    @Test
+    void testNdjsonErrorLineLeavesNoObjects() {
+        contentType = Client.NDJSON_MEDIA_TYPE;
+        responseBody = POINT + "\n" + """
+                {"error": "out of memory"}
+                """ + POINT + "\n";
+
+        assertThrows(ExecutionException.class, this::processTile);
+        // The results received before the error are dropped with the tile
+        assertTrue(streamed.isEmpty());
+        assertTrue(objects.isEmpty());
+    }
+
+    @Test
+    void testPlainJsonArrayIsDecodedWhole() throws Exception {
+        contentType = "application/json";
+        responseBody = "[" + POINT + ", " + POINT + "]";
+        processTile();
+
+        assertEquals(List.of(false), streamed);
+        assertEquals(2, objects.size());
+    }
+
+    private void processTile() throws ExecutionException, InterruptedException {
+        ImageServer<BufferedImage> imageServer = new WrappedBufferedImageServer("test",
+                new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB));
+        RegionRequest region = RegionRequest.createInstance(imageServer.getPath(), 1.0, 0, 0, 64, 64, 0, 0);
+        Client.getInstance().processRegion(imageServer, region, null, "test", new JsonArray(),
+                message -> {}, task -> {
+                    objects.addAll(task.objects);
+                    streamed.add(task.streamed);
+                });
+        assertFalse(streamed.isEmpty());
+    }
+
+    private static void respond(HttpExchange exchange, int statusCode, String contentType, String body)
+            throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        try (OutputStream stream = exchange.getResponseBody()) {
+            stream.write(bytes);
+        }
+    }
+}